@@ -0,0 +1,240 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Compression;
+
+/**
+ * Uploads files through {@link HttpPublisherProfile} to an in-process Jetty
+ * server that discards them, so that only the client side is measured.
+ * 
+ * Run with <code>mvn -P benchmark integration-test</code>; the results are
+ * written to <code>target/jmh-result.json</code> for comparing versions.
+ * Next to the time, <code>cpuMillisPerGB</code> reports the CPU time spent
+ * per gigabyte, e.g. to compare <code>zeroCopy</code> with the regular path.
+ * The defaults are kept small enough for a quick run; select other
+ * parameters with e.g.
+ * <code>-Djmh.args="-p fileSize=104857600,1073741824 -p concurrency=1,4,16"</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UploadBenchmark {
+
+	/**
+	 * Bytes per file; large files such as 100 MB or 1 GB only with
+	 * <code>-p fileSize=...</code>.
+	 */
+	@Param({ "1024", "1048576" })
+	public long fileSize;
+
+	@Param({ "1", "100" })
+	public int fileCount;
+
+	/**
+	 * Uploads in flight at the same time, e.g. 1, 4 or 16.
+	 */
+	@Param({ "4" })
+	public int concurrency;
+
+	/**
+	 * Whether connections are kept alive, or closed by the server after
+	 * every upload.
+	 */
+	@Param({ "true", "false" })
+	public boolean reuseConnections;
+
+	@Param({ "NONE", "GZIP" })
+	public Compression compression;
+
+	/**
+	 * Whether files are sent with sendfile instead of through the heap.
+	 */
+	@Param({ "false", "true" })
+	public boolean zeroCopy;
+
+	private org.mortbay.jetty.Server server;
+	private DiscardingHandler handler;
+	private HttpPublisherProfile profile;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		handler = new DiscardingHandler();
+		server = new org.mortbay.jetty.Server(0);
+		server.addHandler(handler);
+		server.start();
+		int port = server.getConnectors()[0].getLocalPort();
+
+		profile = new HttpPublisherProfile("benchmark", new Server[] {
+				new Server("http://localhost:" + port + "/") });
+		profile.setMaxParallelUploads(concurrency);
+		profile.setMaxConnectionsPerRoute(concurrency);
+		profile.setCompression(compression);
+		profile.setZeroCopy(zeroCopy);
+		profile.setMaxRetries(0);
+		profile.setLogger(new PrintStream(new NullOutputStream()));
+		ConnectionPools.acquire(profile);
+
+		// the same file is uploaded fileCount times, so 1 GB files need
+		// only 1 GB of disk
+		file = File.createTempFile("bench", ".log");
+		file.deleteOnExit();
+		writeFile(file, fileSize);
+	}
+
+	@Setup(Level.Iteration)
+	public void setUpIteration() {
+		handler.keepAlive = reuseConnections;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		ConnectionPools.release(profile);
+		server.stop();
+		server.join();
+		file.delete();
+	}
+
+	@Benchmark
+	public long upload(CpuCounters cpu) throws Exception {
+		long cpuStart = cpu.processCpuTime();
+		List<Callable<Boolean>> uploads = new ArrayList<Callable<Boolean>>(fileCount);
+		for (int i = 0; i < fileCount; i++) {
+			final String name = "file-" + i;
+			uploads.add(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return profile.upload(name, file, new UploadMetrics());
+				}
+			});
+		}
+		for (final Boolean success : new UploadScheduler(concurrency).invokeAll(uploads)) {
+			if (!success) {
+				throw new IllegalStateException("upload failed");
+			}
+		}
+		cpu.add(cpuStart, fileSize * fileCount);
+		return handler.bytes;
+	}
+
+	/**
+	 * CPU time of the whole process, client and in-process server, per
+	 * gigabyte uploaded; reported next to the time of every benchmark.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class CpuCounters {
+		public double cpuMillisPerGB;
+
+		private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+		long processCpuTime() {
+			if (os instanceof com.sun.management.OperatingSystemMXBean) {
+				return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+			}
+			return 0;
+		}
+
+		void add(long cpuStart, long bytes) {
+			double millis = (processCpuTime() - cpuStart) / 1e6;
+			cpuMillisPerGB = millis * (1L << 30) / bytes;
+		}
+	}
+
+	/**
+	 * Writes text-like content that gzip compresses to about a third, from a
+	 * block larger than the gzip window so that it is not just repeated.
+	 */
+	private static void writeFile(File file, long size) throws IOException {
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < 64 * 1024) {
+			text.append("line ").append(text.length()).append(" value ")
+					.append(random.nextInt()).append(' ')
+					.append(Long.toHexString(random.nextLong())).append('\n');
+		}
+		byte[] block = text.toString().getBytes("US-ASCII");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long written = 0; written < size; written += block.length) {
+				out.write(block, 0, (int) Math.min(block.length, size - written));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Accepts every PUT without keeping or waiting on its content.
+	 */
+	static final class DiscardingHandler extends AbstractHandler {
+		volatile boolean keepAlive = true;
+		volatile long bytes;
+
+		public void handle(String target, HttpServletRequest request,
+				HttpServletResponse response, int dispatch) throws IOException,
+				ServletException {
+			InputStream in = request.getInputStream();
+			byte[] buffer = new byte[64 * 1024];
+			long count = 0;
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				count += len;
+			}
+			synchronized (this) {
+				bytes += count;
+			}
+			if (!keepAlive) {
+				response.setHeader("Connection", "close");
+			}
+			response.setStatus(HttpServletResponse.SC_CREATED);
+			((Request) request).setHandled(true);
+		}
+	}
+
+	private static final class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+/**
+ * Entity sending many files as a single tar or zip archive that is built
+ * while it is written, without a temporary file. The archive length is not
+ * known in advance, so the request is sent with chunked transfer encoding.
+ */
+public class ArchiveEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	public enum Format {
+		TAR("tar", "application/x-tar"),
+		TGZ("tar.gz", "application/x-gtar"),
+		ZIP("zip", "application/zip");
+
+		private final String extension;
+		private final String contentType;
+
+		private Format(String extension, String contentType) {
+			this.extension = extension;
+			this.contentType = contentType;
+		}
+
+		public String getExtension() {
+			return extension;
+		}
+
+		/**
+		 * @return the format, or null to upload the files one by one
+		 */
+		public static Format fromString(String value) {
+			if (value == null || value.trim().length() == 0) {
+				return null;
+			}
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				return null;
+			}
+		}
+	}
+
+	private final Format format;
+	private final File base;
+	private final List<String> paths;
+	private final List<String> names;
+	private volatile long archiveLength = -1;
+
+	/**
+	 * @param paths
+	 *            files to archive, relative to <code>base</code>
+	 * @param prefix
+	 *            leading part of the paths to leave out of the entry names
+	 */
+	public ArchiveEntity(Format format, File base, List<String> paths,
+			String prefix) {
+		this.format = format;
+		this.base = base;
+		this.paths = new ArrayList<String>(paths);
+		this.names = new ArrayList<String>(paths.size());
+		for (final String path : paths) {
+			names.add(path.startsWith(prefix) ? path.substring(prefix.length()) : path);
+		}
+		setContentType(format.contentType);
+		setChunked(true);
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return total length of the archived files
+	 */
+	public long getFilesLength() {
+		long length = 0;
+		for (final String path : paths) {
+			length += new File(base, path).length();
+		}
+		return length;
+	}
+
+	/**
+	 * @return number of bytes sent by the last {@link #writeTo(OutputStream)},
+	 *         or -1 if nothing was sent yet
+	 */
+	public long getArchiveLength() {
+		return archiveLength;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return -1;
+	}
+
+	/**
+	 * @return the archive, built while it is read
+	 */
+	public InputStream getContent() throws IOException {
+		return PipedContent.of(this);
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(out);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		if (format == Format.ZIP) {
+			writeZip(counter, buffer);
+		} else {
+			writeTar(counter, buffer);
+		}
+		counter.flush();
+		archiveLength = counter.getCount();
+	}
+
+	private void writeZip(OutputStream out, byte[] buffer) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(out);
+		for (int i = 0; i < paths.size(); i++) {
+			File file = new File(base, paths.get(i));
+			// deflating compressed files again only costs time
+			zip.setLevel(GzipFileEntity.isCompressed(file)
+					? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+			ZipEntry entry = new ZipEntry(names.get(i));
+			entry.setTime(file.lastModified());
+			zip.putNextEntry(entry);
+			copy(file, zip, buffer);
+			zip.closeEntry();
+		}
+		// finish, but leave the connection stream open
+		zip.finish();
+	}
+
+	private void writeTar(OutputStream out, byte[] buffer) throws IOException {
+		GZIPOutputStream gzip = null;
+		if (format == Format.TGZ) {
+			out = gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		TarOutputStream tar = new TarOutputStream(out);
+		tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+		for (int i = 0; i < paths.size(); i++) {
+			File file = new File(base, paths.get(i));
+			TarEntry entry = new TarEntry(names.get(i));
+			entry.setSize(file.length());
+			entry.setModTime(file.lastModified());
+			if (file.canExecute()) {
+				entry.setMode(0100755);
+			}
+			tar.putNextEntry(entry);
+			copy(file, tar, buffer);
+			tar.closeEntry();
+		}
+		tar.finish();
+		if (gzip != null) {
+			gzip.finish();
+		}
+	}
+
+	private static void copy(File file, OutputStream out, byte[] buffer)
+			throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
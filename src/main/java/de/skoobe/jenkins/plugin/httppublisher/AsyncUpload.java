@@ -0,0 +1,169 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.FilePath;
+import hudson.FilePath.FileCallable;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Files of a finished build waiting in the {@link AsyncUploadQueue}. They
+ * were copied out of the workspace into a spool directory of the build, one
+ * per publish step; the upload log goes to
+ * <code>httppublisher-async.log</code> in the build directory.
+ *
+ * A failed upload makes the build unstable if it is still running, as a
+ * publish during the build does; a finished build keeps its result. Either
+ * way the failure is noted in the console log of the build.
+ */
+final class AsyncUpload implements Runnable {
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncUpload.class.getName());
+
+	private final HttpPublisherPlugin publisher;
+	private final AbstractBuild<?, ?> build;
+	private final HttpPublisherProfile profile;
+	private final Map<String, String> envVars;
+	private final FilePath spool;
+	private final long size;
+	private final int files;
+
+	/**
+	 * @param size
+	 *            bytes reserved in the queue for the spooled files
+	 */
+	AsyncUpload(HttpPublisherPlugin publisher, AbstractBuild<?, ?> build,
+			HttpPublisherProfile profile, Map<String, String> envVars,
+			FilePath spool, long size, int files) {
+		this.publisher = publisher;
+		this.build = build;
+		this.profile = profile;
+		this.envVars = new HashMap<String, String>(envVars);
+		this.spool = spool;
+		this.size = size;
+		this.files = files;
+	}
+
+	AbstractBuild<?, ?> getBuild() {
+		return build;
+	}
+
+	FilePath getSpool() {
+		return spool;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	int getFiles() {
+		return files;
+	}
+
+	public void run() {
+		PublishReportAction report = HttpPublisherPlugin.reportOf(build);
+		report.setStatus(PublishReportAction.RUNNING);
+		boolean complete = false;
+		String failure = "not all files could be uploaded";
+		try {
+			File log = new File(build.getRootDir(), "httppublisher-async.log");
+			StreamBuildListener listener = new StreamBuildListener(new FileOutputStream(log, true));
+			try {
+				complete = publisher.publish(build, spool, profile, envVars, listener);
+			} finally {
+				listener.getLogger().close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Background publishing of " + build + " failed", e);
+			failure = String.valueOf(e);
+		} catch (InterruptedException e) {
+			LOGGER.log(Level.WARNING, "Background publishing of " + build + " interrupted", e);
+			failure = "interrupted";
+		} finally {
+			if (!complete) {
+				if (build.isBuilding()) {
+					build.setResult(Result.UNSTABLE);
+				}
+				logFailure(build, failure + ", see httppublisher-async.log in the build directory");
+			}
+			report.setStatus(complete ? PublishReportAction.COMPLETED : PublishReportAction.FAILED);
+			try {
+				build.save();
+			} catch (IOException e) {
+				LOGGER.log(Level.WARNING, "Could not save " + build, e);
+			}
+			try {
+				spool.deleteRecursive();
+			} catch (Exception e) {
+				LOGGER.log(Level.WARNING, "Could not delete " + spool, e);
+			}
+		}
+	}
+
+	/**
+	 * Appends the failure of a background publish to the console log of the
+	 * build, which may have finished already.
+	 */
+	static void logFailure(Run<?, ?> build, String message) {
+		try {
+			FileOutputStream out = new FileOutputStream(build.getLogFile(), true);
+			try {
+				PrintStream log = new PrintStream(out, true, "UTF-8");
+				log.println(HttpPublisherPlugin.DESCRIPTOR.getDisplayName()
+						+ " Background publishing failed: " + message);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not log to " + build, e);
+		}
+	}
+
+	/**
+	 * Counts the files and bytes matching Ant masks on the node owning the
+	 * workspace, before they are copied.
+	 */
+	static final class MatchedSize implements FileCallable<long[]> {
+		private static final long serialVersionUID = 2876390412237411064L;
+
+		private final List<String> masks;
+
+		MatchedSize(List<String> masks) {
+			this.masks = new ArrayList<String>(masks);
+		}
+
+		/**
+		 * @return the number of files and their bytes
+		 */
+		public long[] invoke(File ws, VirtualChannel channel) throws IOException {
+			long files = 0, bytes = 0;
+			for (final String mask : masks) {
+				for (final String path : Util.createFileSet(ws, mask)
+						.getDirectoryScanner().getIncludedFiles()) {
+					files++;
+					bytes += new File(ws, path).length();
+				}
+			}
+			return new long[] { files, bytes };
+		}
+	}
+
+	@Override
+	public String toString() {
+		return build.getFullDisplayName();
+	}
+}
@@ -0,0 +1,320 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.AbstractBuild;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import hudson.model.Run;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Uploads files of finished builds in the background on the controller.
+ *
+ * Both the number of waiting builds and the disk space taken by their
+ * spooled files are bounded; builds that do not fit publish synchronously.
+ * The state of the queue is available as JSON through
+ * <code>/httppublisher-queue/api/json</code>.
+ *
+ * The queue itself lives in memory only. Spool directories are listed in
+ * <code>httppublisher-queue.txt</code> in the Jenkins root directory while
+ * they exist, so that after a restart the builds whose upload was lost are
+ * marked failed and their spooled files deleted.
+ */
+@Extension
+@ExportedBean
+public class AsyncUploadQueue implements RootAction {
+
+	private static final Logger LOGGER = Logger.getLogger(AsyncUploadQueue.class.getName());
+
+	private static final String PREFIX = AsyncUploadQueue.class.getName();
+
+	static final String JOURNAL = "httppublisher-queue.txt";
+
+	/**
+	 * Builds waiting to be uploaded.
+	 */
+	static int CAPACITY = Integer.getInteger(PREFIX + ".capacity", 100);
+	/**
+	 * Megabytes the spooled files may take.
+	 */
+	static long SPOOL_LIMIT = Long.getLong(PREFIX + ".spoolLimit", 4096) * 1024 * 1024;
+	/**
+	 * Builds uploaded at the same time.
+	 */
+	static int THREADS = Integer.getInteger(PREFIX + ".threads", 2);
+
+	/**
+	 * Builds the drain rate is averaged over.
+	 */
+	private static final int RATE_WINDOW = 20;
+
+	private final ThreadPoolExecutor executor;
+	private long spooled;
+	private final LinkedList<long[]> drained = new LinkedList<long[]>();
+	/**
+	 * Job, build number and spool directory of every spooled publish.
+	 */
+	private final Set<String> journal = new LinkedHashSet<String>();
+
+	public AsyncUploadQueue() {
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(CAPACITY), new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HttpPublisher background upload #"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public static AsyncUploadQueue get() {
+		Hudson hudson = Hudson.getInstance();
+		return hudson == null ? null : hudson.getExtensionList(RootAction.class)
+				.get(AsyncUploadQueue.class);
+	}
+
+	public String getIconFileName() {
+		return null;
+	}
+
+	public String getDisplayName() {
+		return "HTTP Publisher queue";
+	}
+
+	public String getUrlName() {
+		return "httppublisher-queue";
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	/**
+	 * Reserves room for spooling files before they are copied.
+	 * 
+	 * @return false if the queue is full or the files would exceed the
+	 *         spool limit
+	 */
+	synchronized boolean reserve(long bytes) {
+		if (executor.getQueue().remainingCapacity() == 0 || spooled + bytes > SPOOL_LIMIT) {
+			return false;
+		}
+		spooled += bytes;
+		return true;
+	}
+
+	/**
+	 * Gives back room reserved for files that are not queued after all.
+	 */
+	synchronized void cancel(long bytes) {
+		spooled -= bytes;
+	}
+
+	/**
+	 * Records a spool directory about to be filled.
+	 */
+	synchronized void spooling(AbstractBuild<?, ?> build, FilePath spool) {
+		journal.add(journalLine(build, spool));
+		saveJournal();
+	}
+
+	/**
+	 * Forgets a spool directory that was deleted.
+	 */
+	synchronized void spooled(AbstractBuild<?, ?> build, FilePath spool) {
+		journal.remove(journalLine(build, spool));
+		saveJournal();
+	}
+
+	private static String journalLine(AbstractBuild<?, ?> build, FilePath spool) {
+		return build.getParent().getFullName() + '\t' + build.getNumber() + '\t'
+				+ spool.getRemote();
+	}
+
+	private static File journalFile() {
+		return new File(Hudson.getInstance().getRootDir(), JOURNAL);
+	}
+
+	private void saveJournal() {
+		File file = journalFile();
+		try {
+			if (journal.isEmpty()) {
+				file.delete();
+				return;
+			}
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				for (final String line : journal) {
+					out.write(line + '\n');
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "Could not write " + file, e);
+		}
+	}
+
+	/**
+	 * Fails the publishes that were queued or running when Jenkins stopped
+	 * and deletes their spooled files.
+	 */
+	@Initializer(after = InitMilestone.JOB_LOADED)
+	public static void recover() throws IOException, InterruptedException {
+		File file = journalFile();
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 3) {
+					continue;
+				}
+				Job<?, ?> job = Hudson.getInstance().getItemByFullName(fields[0], Job.class);
+				Run<?, ?> build = null;
+				try {
+					build = job == null ? null : job.getBuildByNumber(Integer.parseInt(fields[1]));
+				} catch (NumberFormatException e) {
+					// skip damaged lines
+				}
+				PublishReportAction report = build == null ? null
+						: build.getAction(PublishReportAction.class);
+				if (report != null && (PublishReportAction.QUEUED.equals(report.getStatus())
+						|| PublishReportAction.RUNNING.equals(report.getStatus()))) {
+					report.setStatus(PublishReportAction.FAILED);
+					build.save();
+					LOGGER.warning("Background publishing of " + build
+							+ " was lost by a restart");
+					AsyncUpload.logFailure(build, "lost by a restart of Jenkins");
+				}
+				new FilePath(new File(fields[2])).deleteRecursive();
+			}
+		} finally {
+			in.close();
+		}
+		file.delete();
+	}
+
+	synchronized boolean submit(final AsyncUpload upload) {
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					long start = System.currentTimeMillis();
+					try {
+						upload.run();
+					} finally {
+						done(upload, start);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void done(AsyncUpload upload, long start) {
+		spooled -= upload.getSize();
+		spooled(upload.getBuild(), upload.getSpool());
+		drained.addLast(new long[] { upload.getSize(), upload.getFiles(), start,
+				System.currentTimeMillis() });
+		if (drained.size() > RATE_WINDOW) {
+			drained.removeFirst();
+		}
+	}
+
+	/**
+	 * @return builds waiting for their upload to start
+	 */
+	@Exported
+	public int getDepth() {
+		return executor.getQueue().size();
+	}
+
+	@Exported
+	public int getRunning() {
+		return executor.getActiveCount();
+	}
+
+	@Exported
+	public synchronized long getSpooledBytes() {
+		return spooled;
+	}
+
+	@Exported
+	public long getSpoolLimit() {
+		return SPOOL_LIMIT;
+	}
+
+	/**
+	 * @return bytes per second uploaded by the last few builds
+	 */
+	@Exported
+	public synchronized long getDrainRate() {
+		long bytes = 0;
+		for (final long[] d : drained) {
+			bytes += d[0];
+		}
+		long millis = drainMillis();
+		return millis == 0 ? 0 : bytes * 1000 / millis;
+	}
+
+	/**
+	 * @return files per second uploaded by the last few builds
+	 */
+	@Exported
+	public synchronized double getDrainRateFiles() {
+		long files = 0;
+		for (final long[] d : drained) {
+			files += d[1];
+		}
+		long millis = drainMillis();
+		return millis == 0 ? 0 : files * 1000.0 / millis;
+	}
+
+	private long drainMillis() {
+		if (drained.isEmpty()) {
+			return 0;
+		}
+		long first = Long.MAX_VALUE, last = 0;
+		for (final long[] d : drained) {
+			first = Math.min(first, d[2]);
+			last = Math.max(last, d[3]);
+		}
+		return Math.max(1, last - first);
+	}
+}
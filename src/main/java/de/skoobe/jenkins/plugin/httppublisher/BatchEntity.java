@@ -0,0 +1,119 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Entity sending several files as the parts of one
+ * <code>multipart/mixed</code> body. Every part names the target of its file
+ * in a <code>Content-Location</code> header and has a
+ * <code>Content-Length</code>, so servers need not scan the files for the
+ * boundary.
+ */
+public class BatchEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final String boundary = "httppublisher-" + UUID.randomUUID();
+	private final List<String> targets = new ArrayList<String>();
+	private final List<File> files = new ArrayList<File>();
+
+	public BatchEntity() {
+		setContentType("multipart/mixed; boundary=" + boundary);
+	}
+
+	public void add(String target, File file) {
+		targets.add(target);
+		files.add(file);
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * @return bytes of the files, without the part headers
+	 */
+	public long getFilesLength() {
+		long length = 0;
+		for (final File file : files) {
+			length += file.length();
+		}
+		return length;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		try {
+			long length = utf8("--" + boundary + "--\r\n").length;
+			for (int i = 0; i < files.size(); i++) {
+				length += partHeader(i).length + files.get(i).length() + 2;
+			}
+			return length;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	public InputStream getContent() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeTo(out);
+		return new ByteArrayInputStream(out.toByteArray());
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		for (int i = 0; i < files.size(); i++) {
+			out.write(partHeader(i));
+			InputStream in = new FileInputStream(files.get(i));
+			try {
+				long remaining = files.get(i).length();
+				int len;
+				// send the length announced in the header, even if the file grew
+				while (remaining > 0
+						&& (len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+					out.write(buffer, 0, len);
+					remaining -= len;
+				}
+				if (remaining > 0) {
+					throw new IOException(files.get(i) + " got shorter while sending it");
+				}
+			} finally {
+				in.close();
+			}
+			out.write(utf8("\r\n"));
+		}
+		out.write(utf8("--" + boundary + "--\r\n"));
+		out.flush();
+	}
+
+	private byte[] partHeader(int i) throws UnsupportedEncodingException {
+		// like the URLs of single uploads, targets are sent as they are
+		return utf8("--" + boundary + "\r\n"
+				+ "Content-Location: " + targets.get(i) + "\r\n"
+				+ "Content-Type: application/octet-stream\r\n"
+				+ "Content-Length: " + files.get(i).length() + "\r\n\r\n");
+	}
+
+	private static byte[] utf8(String s) throws UnsupportedEncodingException {
+		return s.getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,648 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.FilePath.FileCallable;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Incremental;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Verbosity;
+
+/**
+ * Uploads all files matching the Ant masks of the entries with a single
+ * remoting call: the files are resolved and uploaded on the node owning the
+ * workspace and only the per-file results travel back. Entries with an
+ * archive format are sent as one archive instead.
+ */
+public class BatchUploadTask implements FileCallable<List<UploadReport>> {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 4331263585187606329L;
+	private final ProfileSnapshot snapshot;
+	private final BuildListener listener;
+	private final List<Entry> entries;
+	/**
+	 * Digests recorded by the last publish, by file name.
+	 */
+	private final Map<String, String> manifest;
+	/**
+	 * Builds sharing this scope upload a file to a target only once.
+	 */
+	private final String dedupScope;
+	/**
+	 * Where the lines per file go with {@link Verbosity#SUMMARY}; closed once
+	 * the upload is done.
+	 */
+	private final OutputStream detailLog;
+	/**
+	 * What the controller knows the servers have, by target name.
+	 */
+	private transient Map<String, ArrayList<RemoteIndex.Record>> index;
+	private transient HttpPublisherProfile profile;
+
+	/**
+	 * @param entries
+	 *            entries with the build variables replaced already
+	 * @param detailLog
+	 *            a stream that can be sent to the node, or null to log every
+	 *            file to the build log
+	 */
+	public BatchUploadTask(ProfileSnapshot snapshot,
+			BuildListener listener, List<Entry> entries, Map<String, String> manifest,
+			String dedupScope, OutputStream detailLog) {
+		this.snapshot = snapshot;
+		this.listener = listener;
+		this.entries = new ArrayList<Entry>(entries);
+		this.manifest = manifest;
+		this.dedupScope = dedupScope;
+		this.detailLog = detailLog;
+	}
+
+	/**
+	 * @return one report per entry, in the order of the entries
+	 */
+	public List<UploadReport> invoke(final File ws, VirtualChannel channel)
+			throws IOException, InterruptedException {
+		profile = snapshot.resolve(channel);
+		profile.setLogger(listener.getLogger());
+
+		ProgressLog progress = null;
+		try {
+			List<String> masks = new ArrayList<String>(entries.size());
+			for (final Entry entry : entries) {
+				masks.add(maskOf(ws, entry));
+			}
+			// one walk over the workspace for all masks
+			WorkspaceScanner scanner = new WorkspaceScanner(ws, masks);
+			List<List<String>> matches = scanner.scan();
+
+			List<Mapping> mappings = mapTargets(ws, matches);
+			if (profile.getIncremental() == Incremental.INDEX) {
+				index = lookup(channel, mappings);
+			}
+
+			if (profile.getVerbosity() == Verbosity.SUMMARY && detailLog != null) {
+				progress = new ProgressLog(listener.getLogger(), detailLog,
+						mappings.size(), totalBytes(ws, matches, mappings));
+				profile.setLogger(progress.getDetail());
+				progress.start();
+			}
+			final UploadDedup dedup = UploadDedup.acquire(dedupScope);
+			try {
+				return upload(ws, scanner, matches, mappings, dedup, progress);
+			} finally {
+				dedup.release();
+			}
+		} finally {
+			if (progress != null) {
+				progress.close();
+			} else if (detailLog != null) {
+				detailLog.close();
+			}
+		}
+	}
+
+	private static long totalBytes(File ws, List<List<String>> matches,
+			List<Mapping> mappings) {
+		long bytes = 0;
+		for (final Mapping mapping : mappings) {
+			if (mapping.path != null) {
+				bytes += new File(ws, mapping.path).length();
+				continue;
+			}
+			for (final String path : matches.get(mapping.entry)) {
+				bytes += new File(ws, path).length();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Where a matched file, or the archive of an entry, goes.
+	 */
+	private static final class Mapping implements Comparable<Mapping> {
+		final int entry;
+		/**
+		 * Position of the file among the matches of the entry.
+		 */
+		final int order;
+		final String path;
+		final String target;
+
+		Mapping(int entry, int order, String path, String target) {
+			this.entry = entry;
+			this.order = order;
+			this.path = path;
+			this.target = target;
+		}
+
+		public int compareTo(Mapping other) {
+			return target.compareTo(other.target);
+		}
+	}
+
+	/**
+	 * Works out the target of every matched file once, sorted by target so
+	 * that files going to the same remote directory are sent together.
+	 */
+	private List<Mapping> mapTargets(File ws, List<List<String>> matches) {
+		List<Mapping> mappings = new ArrayList<Mapping>();
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = entries.get(i);
+			List<String> paths = matches.get(i);
+			if (entry.getArchiveFormat() != null) {
+				if (!paths.isEmpty()) {
+					mappings.add(new Mapping(i, 0, null, archiveTarget(ws, entry)));
+				}
+				continue;
+			}
+			for (int j = 0; j < paths.size(); j++) {
+				mappings.add(new Mapping(i, j, paths.get(j), entry.targetOf(paths.get(j))));
+			}
+		}
+		Collections.sort(mappings);
+
+		// different files with the same target overwrite each other
+		Map<String, String> sources = new HashMap<String, String>();
+		for (final Mapping mapping : mappings) {
+			if (mapping.path == null) {
+				continue;
+			}
+			String other = sources.put(mapping.target, mapping.path);
+			if (other != null && !other.equals(mapping.path)) {
+				profile.log("warning: " + other + " and " + mapping.path
+						+ " are both uploaded to " + mapping.target);
+			}
+		}
+		return mappings;
+	}
+
+	private List<UploadReport> upload(final File ws, WorkspaceScanner scanner,
+			List<List<String>> matches, List<Mapping> mappings, final UploadDedup dedup,
+			ProgressLog progress) throws IOException, InterruptedException {
+		// jobs upload one file or archive, or a batch of small files
+		List<Callable<List<UploadResult>>> uploads = new ArrayList<Callable<List<UploadResult>>>();
+		List<List<Integer>> uploaded = new ArrayList<List<Integer>>();
+		boolean[] batched = new boolean[mappings.size()];
+		List<List<Integer>> batches = batch(ws, mappings, batched);
+		int nextBatch = 0;
+		PrefetchPipeline pipeline = prefetch(ws, mappings, batched);
+		for (int i = 0; i < mappings.size(); i++) {
+			final Mapping mapping = mappings.get(i);
+			final Entry entry = entries.get(mapping.entry);
+			if (batched[i]) {
+				// a batch is uploaded in place of its first file
+				if (nextBatch < batches.size() && batches.get(nextBatch).get(0) == i) {
+					final List<Mapping> batch = new ArrayList<Mapping>();
+					for (final int j : batches.get(nextBatch)) {
+						batch.add(mappings.get(j));
+					}
+					uploads.add(new Callable<List<UploadResult>>() {
+						public List<UploadResult> call() throws Exception {
+							return uploadBatch(ws, batch, dedup);
+						}
+					});
+					uploaded.add(batches.get(nextBatch++));
+				}
+				continue;
+			}
+			uploaded.add(Collections.singletonList(i));
+			if (mapping.path == null) {
+				final List<String> paths = matches.get(mapping.entry);
+				uploads.add(new Callable<List<UploadResult>>() {
+					public List<UploadResult> call() throws Exception {
+						return Collections.singletonList(
+								uploadArchive(ws, entry, paths, mapping.target));
+					}
+				});
+				continue;
+			}
+			final File file = new File(ws, mapping.path);
+			final PrefetchPipeline.Prefetched prefetched = pipeline.get(i);
+			uploads.add(new Callable<List<UploadResult>>() {
+				public List<UploadResult> call() throws Exception {
+					try {
+						// overlapping entries and matrix configurations may
+						// ask for the same upload
+						return Collections.singletonList(dedup.upload(
+								UploadDedup.keyOf(file, mapping.target), mapping.path,
+								new Callable<UploadResult>() {
+									public UploadResult call() throws Exception {
+										return upload(mapping.path, file, mapping.target,
+												prefetched);
+									}
+								}));
+					} finally {
+						if (prefetched != null) {
+							prefetched.release();
+						}
+					}
+				}
+			});
+		}
+		for (int i = 0; i < uploads.size(); i++) {
+			uploads.set(i, failSafe(uploads.get(i), ws, mappings, uploaded.get(i)));
+		}
+		// the files of all entries share the upload slots
+		if (progress != null) {
+			for (int i = 0; i < uploads.size(); i++) {
+				uploads.set(i, tracked(uploads.get(i), progress));
+			}
+		}
+		UploadScheduler scheduler = UploadScheduler.of(profile);
+		UploadResult[] results = new UploadResult[mappings.size()];
+		pipeline.start();
+		try {
+			List<List<UploadResult>> jobResults = scheduler.invokeAll(uploads);
+			for (int i = 0; i < jobResults.size(); i++) {
+				for (int j = 0; j < jobResults.get(i).size(); j++) {
+					results[uploaded.get(i).get(j)] = jobResults.get(i).get(j);
+				}
+			}
+		} finally {
+			pipeline.close();
+		}
+
+		// report in the order the files were matched
+		List<UploadResult[]> byEntry = new ArrayList<UploadResult[]>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			int count = entries.get(i).getArchiveFormat() != null
+					? Math.min(1, matches.get(i).size()) : matches.get(i).size();
+			byEntry.add(new UploadResult[count]);
+		}
+		for (int i = 0; i < mappings.size(); i++) {
+			byEntry.get(mappings.get(i).entry)[mappings.get(i).order] = results[i];
+		}
+		List<UploadReport> reports = new ArrayList<UploadReport>(entries.size());
+		for (int i = 0; i < entries.size(); i++) {
+			UploadResult[] entryResults = byEntry.get(i);
+			reports.add(new UploadReport(Arrays.asList(entryResults),
+					entryResults.length == 0 ? scanner.explainEmpty(i) : null));
+		}
+		return reports;
+	}
+
+	/**
+	 * Reports the files of <code>upload</code> as failed if it throws, so
+	 * that one broken file does not cost the results of all others.
+	 * 
+	 * @param indices
+	 *            the mappings uploaded by <code>upload</code>
+	 */
+	private Callable<List<UploadResult>> failSafe(
+			final Callable<List<UploadResult>> upload, final File ws,
+			final List<Mapping> mappings, final List<Integer> indices) {
+		return new Callable<List<UploadResult>>() {
+			public List<UploadResult> call() throws Exception {
+				try {
+					return upload.call();
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					List<UploadResult> failed = new ArrayList<UploadResult>(indices.size());
+					for (final int i : indices) {
+						Mapping mapping = mappings.get(i);
+						String path = mapping.path != null ? mapping.path
+								: entries.get(mapping.entry).sourceFile.trim();
+						long size = mapping.path != null
+								? new File(ws, mapping.path).length() : 0;
+						listener.getLogger().println("failed to upload " + path + ": " + e);
+						failed.add(new UploadResult(path, mapping.target, false, false,
+								size, null, new UploadMetrics()));
+					}
+					return failed;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Counts the results of <code>upload</code> towards the progress as soon
+	 * as it is done.
+	 */
+	private static Callable<List<UploadResult>> tracked(
+			final Callable<List<UploadResult>> upload, final ProgressLog progress) {
+		return new Callable<List<UploadResult>>() {
+			public List<UploadResult> call() throws Exception {
+				List<UploadResult> results = upload.call();
+				progress.done(results);
+				return results;
+			}
+		};
+	}
+
+	/**
+	 * Groups the small files into batches of at most the files and bytes the
+	 * profile allows, in the order they are uploaded.
+	 * 
+	 * @param batched
+	 *            set for every mapping in a batch
+	 * @return the mapping indices of every batch
+	 */
+	private List<List<Integer>> batch(File ws, List<Mapping> mappings,
+			boolean[] batched) throws IOException {
+		List<List<Integer>> batches = new ArrayList<List<Integer>>();
+		if (profile.getBatchFiles() <= 1) {
+			return batches;
+		}
+		List<Integer> batch = new ArrayList<Integer>();
+		long bytes = 0;
+		for (int i = 0; i < mappings.size(); i++) {
+			Mapping mapping = mappings.get(i);
+			if (mapping.path == null) {
+				continue;
+			}
+			File file = new File(ws, mapping.path);
+			if (!profile.isBatched(file)) {
+				continue;
+			}
+			if (batch.size() == profile.getBatchFiles()
+					|| bytes + file.length() > profile.getBatchSizeBytes()) {
+				batches.add(batch);
+				batch = new ArrayList<Integer>();
+				bytes = 0;
+			}
+			batch.add(i);
+			bytes += file.length();
+		}
+		if (!batch.isEmpty()) {
+			batches.add(batch);
+		}
+		for (final List<Integer> indices : batches) {
+			// a batch of one is just an upload
+			if (indices.size() > 1) {
+				for (final int i : indices) {
+					batched[i] = true;
+				}
+			}
+		}
+		for (Iterator<List<Integer>> it = batches.iterator(); it.hasNext();) {
+			if (it.next().size() <= 1) {
+				it.remove();
+			}
+		}
+		return batches;
+	}
+
+	/**
+	 * Reads the files that are sent as they are ahead of sending them. With
+	 * an incremental mode the digests of the small ones are computed while
+	 * reading; larger ones are digested right before sending.
+	 * 
+	 * @return a pipeline with an entity for every mapping read ahead
+	 */
+	private PrefetchPipeline prefetch(File ws, List<Mapping> mappings,
+			boolean[] batched) throws IOException {
+		BufferPool pool = BufferPool.shared();
+		boolean digest = profile.getIncremental() != Incremental.OFF;
+		List<File> files = new ArrayList<File>(mappings.size());
+		for (int i = 0; i < mappings.size(); i++) {
+			Mapping mapping = mappings.get(i);
+			File file = null;
+			// zero-copy transfers do not read files into memory at all
+			if (profile.isPrefetch() && !profile.isZeroCopy() && mapping.path != null
+					&& !batched[i]) {
+				File candidate = new File(ws, mapping.path);
+				if (profile.sendsWhole(candidate)) {
+					file = candidate;
+				}
+			}
+			files.add(file);
+		}
+		return new PrefetchPipeline(pool, files, digest);
+	}
+
+	/**
+	 * Asks the controller about all files to upload in one call.
+	 */
+	private Map<String, ArrayList<RemoteIndex.Record>> lookup(
+			VirtualChannel channel, List<Mapping> mappings)
+			throws IOException, InterruptedException {
+		List<String> targets = new ArrayList<String>(mappings.size());
+		for (final Mapping mapping : mappings) {
+			if (mapping.path != null) {
+				targets.add(mapping.target);
+			}
+		}
+		List<String> servers = new ArrayList<String>();
+		for (final Server server : profile.getServers()) {
+			servers.add(server.getHostname());
+		}
+		return channel.call(new RemoteIndex.Lookup(profile.getName(), servers, targets));
+	}
+
+	/**
+	 * A directory given as the source of an archive stands for all files
+	 * below it.
+	 */
+	private static String maskOf(File ws, Entry entry) {
+		String mask = entry.sourceFile.trim();
+		if (entry.getArchiveFormat() != null && isDirectory(ws, mask)) {
+			return mask.endsWith("/") ? mask : mask + "/";
+		}
+		return mask;
+	}
+
+	private static boolean isDirectory(File ws, String mask) {
+		return mask.length() > 0 && mask.indexOf('*') < 0 && mask.indexOf('?') < 0
+				&& mask.indexOf(',') < 0 && new File(ws, mask).isDirectory();
+	}
+
+	/**
+	 * Name of the archive of an entry on the server; a target path is used
+	 * as the directory to put it in.
+	 */
+	private static String archiveTarget(File ws, Entry entry) {
+		String mask = entry.sourceFile.trim();
+		String baseName = isDirectory(ws, mask) ? mask
+				: MaskPattern.compile(maskOf(ws, entry)).literalBase();
+		String name = entry.archiveName;
+		if (name == null || name.trim().length() == 0) {
+			String[] segments = MaskPattern.tokenize(baseName);
+			name = (segments.length == 0 ? "archive" : segments[segments.length - 1])
+					+ "." + entry.getArchiveFormat().getExtension();
+		}
+		Entry placement = new Entry();
+		placement.targetPath = entry.targetPath != null
+				&& entry.targetPath.indexOf('{') < 0 ? entry.targetPath : null;
+		return placement.targetOf(name.trim());
+	}
+
+	private UploadResult uploadArchive(File ws, Entry entry, List<String> paths,
+			String target) {
+		ArchiveEntity.Format format = entry.getArchiveFormat();
+		String mask = entry.sourceFile.trim();
+		// entries of a directory archive are named relative to the directory
+		String prefix = "";
+		if (isDirectory(ws, mask)) {
+			prefix = mask.endsWith("/") ? mask : mask + "/";
+		}
+
+		ArchiveEntity archive = new ArchiveEntity(format, ws, paths, prefix);
+		UploadMetrics metrics = new UploadMetrics();
+		long start = System.currentTimeMillis();
+		profile.log("archiving " + paths.size() + " file(s) matching " + mask
+				+ " as " + target);
+		boolean success = profile.upload(target, archive, metrics);
+		metrics.setDuration(System.currentTimeMillis() - start);
+		if (success) {
+			profile.log(target + ": " + paths.size() + " file(s), "
+					+ archive.getFilesLength() + " bytes archived to "
+					+ archive.getArchiveLength() + " bytes, " + metrics);
+		}
+		return new UploadResult(mask, target, success, false,
+				archive.getFilesLength(), null, metrics);
+	}
+
+	/**
+	 * Uploads small files with one request. Files the server did not take
+	 * are uploaded one by one.
+	 * 
+	 * @return the results in the order of <code>batch</code>
+	 */
+	private List<UploadResult> uploadBatch(File ws, List<Mapping> batch,
+			UploadDedup dedup) throws IOException, InterruptedException {
+		UploadResult[] results = new UploadResult[batch.size()];
+		String[] keys = new String[batch.size()];
+		String[] digests = new String[batch.size()];
+		List<Integer> claimed = new ArrayList<Integer>();
+		Map<Integer, Future<UploadResult>> running = new HashMap<Integer, Future<UploadResult>>();
+		try {
+			BatchEntity entity = new BatchEntity();
+			List<Integer> parts = new ArrayList<Integer>();
+			for (int i = 0; i < batch.size(); i++) {
+				Mapping mapping = batch.get(i);
+				File file = new File(ws, mapping.path);
+				keys[i] = UploadDedup.keyOf(file, mapping.target);
+				// overlapping entries and matrix configurations may ask for
+				// the same upload
+				Future<UploadResult> upload = dedup.claim(keys[i]);
+				if (upload != null) {
+					running.put(i, upload);
+					continue;
+				}
+				claimed.add(i);
+				profile.log("file=" + mapping.target);
+				if (profile.getIncremental() != Incremental.OFF) {
+					UploadMetrics metrics = new UploadMetrics();
+					FileDigest fileDigest = FileDigest.of(file);
+					digests[i] = fileDigest.getSha256();
+					if (isUnchanged(mapping.target, file, fileDigest, metrics)) {
+						profile.log("unchanged " + mapping.path);
+						results[i] = new UploadResult(mapping.path, mapping.target, true, true,
+								file.length(), digests[i], metrics);
+						continue;
+					}
+				}
+				entity.add(mapping.target, file);
+				parts.add(i);
+			}
+			if (parts.size() > 0) {
+				UploadMetrics batchMetrics = new UploadMetrics();
+				long start = System.currentTimeMillis();
+				Map<String, Integer> statuses = parts.size() == 1
+						? Collections.<String, Integer> emptyMap()
+						: new BatchedUpload(profile, Transport.of(profile),
+								entity, RetryPolicy.start(profile), batchMetrics).run();
+				long elapsed = System.currentTimeMillis() - start;
+				for (final int i : parts) {
+					Mapping mapping = batch.get(i);
+					File file = new File(ws, mapping.path);
+					Integer status = statuses.get(mapping.target);
+					UploadMetrics metrics = new UploadMetrics();
+					if (status != null && status / 100 == 2) {
+						metrics.setServer(batchMetrics.getServer());
+						metrics.addBytesSent(file.length());
+						metrics.setDuration(elapsed);
+						metrics.setTimeToFirstByte(batchMetrics.getTimeToFirstByte());
+						results[i] = new UploadResult(mapping.path, mapping.target, true,
+								false, file.length(), digests[i], metrics);
+					} else {
+						results[i] = send(mapping.path, file, mapping.target, digests[i],
+								null, metrics, System.currentTimeMillis());
+					}
+				}
+			}
+		} finally {
+			for (final int i : claimed) {
+				Mapping mapping = batch.get(i);
+				dedup.complete(keys[i], results[i] != null ? results[i]
+						: new UploadResult(mapping.path, mapping.target, false, false,
+								new File(ws, mapping.path).length(), null, new UploadMetrics()));
+			}
+		}
+		for (final Map.Entry<Integer, Future<UploadResult>> upload : running.entrySet()) {
+			results[upload.getKey()] = UploadDedup.duplicate(upload.getValue(),
+					batch.get(upload.getKey()).path);
+		}
+		return Arrays.asList(results);
+	}
+
+	private boolean isUnchanged(String target, File file, FileDigest fileDigest,
+			UploadMetrics metrics) {
+		return profile.getIncremental() == Incremental.INDEX
+				? profile.isIndexed(target, file, fileDigest, index.get(target), metrics)
+				: profile.isUnchanged(target, file, fileDigest, manifest);
+	}
+
+	/**
+	 * @param prefetched
+	 *            the file read ahead, or null to read it while sending
+	 */
+	private UploadResult upload(String path, File file, String target,
+			PrefetchPipeline.Prefetched prefetched)
+			throws IOException, InterruptedException {
+		profile.log("file=" + target);
+		UploadMetrics metrics = new UploadMetrics();
+		long start = System.currentTimeMillis();
+		try {
+			String digest = null;
+			if (profile.getIncremental() != Incremental.OFF) {
+				FileDigest fileDigest = prefetched != null ? prefetched.getDigest() : null;
+				if (fileDigest == null) {
+					fileDigest = FileDigest.of(file);
+				}
+				digest = fileDigest.getSha256();
+				if (isUnchanged(target, file, fileDigest, metrics)) {
+					profile.log("unchanged " + path);
+					metrics.setDuration(System.currentTimeMillis() - start);
+					return new UploadResult(path, target, true, true, file.length(), digest, metrics);
+				}
+			}
+			return send(path, file, target, digest, prefetched, metrics, start);
+		} finally {
+			if (prefetched != null) {
+				prefetched.release();
+				metrics.addPrefetchWaits(prefetched.getDiskWait(),
+						prefetched.getNetworkWait());
+			}
+		}
+	}
+
+	private UploadResult send(String path, File file, String target, String digest,
+			PrefetchPipeline.Prefetched prefetched, UploadMetrics metrics, long start)
+			throws IOException {
+		profile.log("uploading " + file);
+		boolean success = prefetched != null
+				? profile.upload(target, prefetched, metrics)
+				: profile.upload(target, file, metrics);
+		metrics.setDuration(System.currentTimeMillis() - start);
+		if (success) {
+			profile.log(path + ": " + metrics);
+		}
+		return new UploadResult(path, target, success, false, file.length(), digest, metrics);
+	}
+}
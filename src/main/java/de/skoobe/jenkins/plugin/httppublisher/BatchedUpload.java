@@ -0,0 +1,126 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Uploads several small files with one PUT of a {@link BatchEntity} to the
+ * base URL of a server, saving the per-request overhead of sending them one
+ * by one.
+ * 
+ * A server supporting batches answers with a 2xx status and a plain text
+ * body with a line <code>&lt;status&gt; &lt;target&gt;</code> per part, for
+ * example <code>201 libs/a.jar</code>. Parts without a 2xx line, and all
+ * parts of a batch a server answers with any other status, are left for the
+ * caller to upload one by one.
+ */
+final class BatchedUpload {
+
+	private static final Pattern PART_STATUS = Pattern.compile("(\\d{3})\\s+(.+)");
+
+	private final HttpPublisherProfile profile;
+	private final Transport transport;
+	private final BatchEntity batch;
+	private final RetryPolicy retryPolicy;
+	private final UploadMetrics metrics;
+
+	/**
+	 * @param metrics
+	 *            metrics of the whole request
+	 */
+	BatchedUpload(HttpPublisherProfile profile, Transport transport,
+			BatchEntity batch, RetryPolicy retryPolicy, UploadMetrics metrics) {
+		this.profile = profile;
+		this.transport = transport;
+		this.batch = batch;
+		this.retryPolicy = retryPolicy;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the status of every part the server answered for, by target;
+	 *         empty if no server took the batch
+	 */
+	Map<String, Integer> run() {
+		for (final Server server : ServerSelector.order(profile)) {
+			String currentServer = server.getHostname();
+			for (int attempt = 0;; attempt++) {
+				Map<String, Integer> statuses = new HashMap<String, Integer>();
+				int status = putOnce(currentServer, statuses);
+				if (status / 100 == 2) {
+					return statuses;
+				}
+				if (!RetryPolicy.isRetryable(status)) {
+					// the server does not take batches, nor will the others
+					return statuses;
+				}
+				if (!retryPolicy.shouldRetry(attempt, status, HttpPut.METHOD_NAME, batch)) {
+					break;
+				}
+				long delay = retryPolicy.backoff(attempt);
+				metrics.addRetry();
+				profile.log(currentServer + " batch retry " + (attempt + 1) + "/"
+						+ retryPolicy.getMaxRetries() + " in " + delay + " ms");
+				try {
+					if (!retryPolicy.sleep(delay)) {
+						return new HashMap<String, Integer>();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return new HashMap<String, Integer>();
+				}
+			}
+			if (retryPolicy.isExpired()) {
+				break;
+			}
+		}
+		return new HashMap<String, Integer>();
+	}
+
+	/**
+	 * @return the response status, or {@link RetryPolicy#IO_ERROR}
+	 */
+	private int putOnce(String currentServer, Map<String, Integer> statuses) {
+		ServerHealth health = ServerHealth.of(currentServer);
+		long start = System.currentTimeMillis();
+		health.begin();
+		int status = RetryPolicy.IO_ERROR;
+		try {
+			MeteredEntity meteredEntity = new MeteredEntity(
+					ThrottledEntity.of(profile, batch, metrics));
+			HttpResponse response = transport.put(currentServer, meteredEntity, retryPolicy);
+			metrics.setTimeToFirstByte(meteredEntity.millisSinceSent());
+			String body = response.getEntity() == null ? ""
+					: EntityUtils.toString(response.getEntity(), "UTF-8");
+			status = response.getStatusLine().getStatusCode();
+			profile.log(currentServer + " " + response.getStatusLine() + " (batch of "
+					+ batch.size() + " file(s), " + batch.getFilesLength() + " bytes)");
+			if (status / 100 == 2) {
+				for (final String line : body.split("\r?\n")) {
+					Matcher m = PART_STATUS.matcher(line.trim());
+					if (m.matches()) {
+						statuses.put(m.group(2).trim(), Integer.valueOf(m.group(1)));
+					}
+				}
+				metrics.setServer(currentServer);
+				metrics.addBytesSent(meteredEntity.getBytesSent());
+			}
+		} catch (IOException e) {
+			profile.log(currentServer + " " + e);
+		}
+		if (!RetryPolicy.isRetryable(status)) {
+			// refusing batches does not make a server unhealthy
+			health.success(System.currentTimeMillis() - start);
+		} else {
+			health.failure(System.currentTimeMillis() - start, profile.getCoolDownMillis());
+		}
+		return status;
+	}
+}
@@ -0,0 +1,79 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Direct buffers shared by all uploads of the JVM that read files ahead of
+ * sending them. The number of buffers is bounded; they are allocated on
+ * first use and kept for reuse, as allocating direct memory is expensive.
+ * 
+ * Buffers are reserved in the order they are asked for, so a reader of a
+ * later file cannot starve the reader of a file that is being sent. Readers
+ * wait for buffers only for a limited time, as buffers of one build may be
+ * held by files waiting for another one.
+ */
+final class BufferPool {
+
+	private static final String PREFIX = BufferPool.class.getName();
+
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * Number of buffers of all uploads of this JVM together.
+	 */
+	static int POOL_SIZE = Math.max(1, Integer.getInteger(PREFIX + ".size", 32));
+
+	private static BufferPool shared;
+
+	private final Semaphore available;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final int size;
+
+	BufferPool(int size) {
+		this.size = size;
+		this.available = new Semaphore(size, true);
+	}
+
+	static synchronized BufferPool shared() {
+		if (shared == null) {
+			shared = new BufferPool(POOL_SIZE);
+		}
+		return shared;
+	}
+
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * Waits until <code>count</code> buffers are available, at most the size
+	 * of the pool.
+	 * 
+	 * @return the buffers, or null if they did not become available in time
+	 */
+	List<ByteBuffer> reserve(int count, long timeout) throws InterruptedException {
+		count = Math.min(count, size);
+		if (!available.tryAcquire(count, timeout, TimeUnit.MILLISECONDS)) {
+			return null;
+		}
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(count);
+		for (int i = 0; i < count; i++) {
+			ByteBuffer buffer = free.poll();
+			buffers.add(buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+		return buffers;
+	}
+
+	void release(List<ByteBuffer> buffers) {
+		for (final ByteBuffer buffer : buffers) {
+			buffer.clear();
+			free.add(buffer);
+		}
+		available.release(buffers.size());
+	}
+}
@@ -0,0 +1,43 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An entity that can write itself to a channel directly, without copying
+ * its content through the Java heap.
+ */
+interface ChannelWritable {
+
+	/**
+	 * @return false if the entity can only be written to a stream right now
+	 */
+	boolean isChannelWritable();
+
+	/**
+	 * Opens the content for one transfer, fixing its length before the
+	 * request announces it.
+	 */
+	Transfer open() throws IOException;
+
+	/**
+	 * The content of an entity as it was when it was opened.
+	 */
+	interface Transfer extends Closeable {
+
+		/**
+		 * @return number of bytes {@link #writeTo} writes
+		 */
+		long getLength();
+
+		/**
+		 * Writes exactly {@link #getLength()} bytes to the channel.
+		 * 
+		 * @return number of bytes written
+		 * @throws IOException
+		 *             also if the content changed since it was opened
+		 */
+		long writeTo(WritableByteChannel channel) throws IOException;
+	}
+}
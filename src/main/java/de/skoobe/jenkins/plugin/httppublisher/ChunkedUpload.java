@@ -0,0 +1,151 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Uploads a file to one server as a sequence of <code>Content-Range</code>
+ * PUTs. A failed chunk is sent again from the last offset the server
+ * acknowledged, without starting over from the beginning of the file.
+ *
+ * A server may acknowledge less than it received by answering a chunk with
+ * a <code>Range: bytes=0-&lt;last&gt;</code> header (with status 2xx or 308);
+ * the upload then continues right after <code>last</code>.
+ *
+ * Every chunk but the last must be answered with 308 or with a
+ * <code>Range</code> header. A server answering the first chunk with a plain
+ * 2xx has stored it as the whole file, so the upload stops and
+ * {@link #isRangeUnsupported()} tells the caller to send the file in one
+ * request instead.
+ */
+final class ChunkedUpload {
+
+	private static final Pattern ACKNOWLEDGED_RANGE = Pattern.compile("bytes=0-(\\d+)");
+
+	private final HttpPublisherProfile profile;
+	private final Transport transport;
+	private final String currentServer;
+	private final String fileName;
+	private final File file;
+	private final RetryPolicy retryPolicy;
+	private final UploadMetrics metrics;
+	private boolean rangeUnsupported;
+
+	ChunkedUpload(HttpPublisherProfile profile, Transport transport,
+			String currentServer, String fileName, File file,
+			RetryPolicy retryPolicy, UploadMetrics metrics) {
+		this.profile = profile;
+		this.transport = transport;
+		this.currentServer = currentServer;
+		this.fileName = fileName;
+		this.file = file;
+		this.retryPolicy = retryPolicy;
+		this.metrics = metrics;
+	}
+
+	boolean run() {
+		long total = file.length();
+		long chunkSize = profile.getChunkSizeBytes();
+		int maxRetries = profile.getChunkRetries();
+		long offset = 0;
+		int retries = 0;
+
+		while (offset < total) {
+			long length = Math.min(chunkSize, total - offset);
+			long start = System.currentTimeMillis();
+			long acknowledged = putChunk(offset, length, total);
+			long elapsed = Math.max(1, System.currentTimeMillis() - start);
+			if (acknowledged < 0) {
+				return false;
+			}
+			if (acknowledged > offset) {
+				profile.log(String.format("%s chunk %d-%d/%d: %d ms, %d KB/s, %d retries",
+						currentServer, offset, offset + length - 1, total, elapsed,
+						(acknowledged - offset) * 1000 / 1024 / elapsed, retries));
+				metrics.addBytesSent(acknowledged - offset);
+				offset = acknowledged;
+				retries = 0;
+			} else if (retries < maxRetries && !retryPolicy.isExpired()) {
+				long delay = retryPolicy.backoff(retries++);
+				metrics.addRetry();
+				profile.log(currentServer + " retrying chunk at offset " + offset
+						+ " in " + delay + " ms (" + retries + "/" + maxRetries + ")");
+				try {
+					if (!retryPolicy.sleep(delay)) {
+						profile.log(currentServer + " deadline exceeded at offset " + offset);
+						return false;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			} else {
+				profile.log(currentServer + " giving up at offset " + offset + " of " + total);
+				return false;
+			}
+		}
+		metrics.setServer(currentServer);
+		return true;
+	}
+
+	/**
+	 * @return true if the upload failed because the server does not
+	 *         acknowledge chunks
+	 */
+	boolean isRangeUnsupported() {
+		return rangeUnsupported;
+	}
+
+	/**
+	 * @return the offset following the last byte the server acknowledged,
+	 *         <code>offset</code> if the chunk failed and may be sent again,
+	 *         or -1 if the upload cannot succeed on this server
+	 */
+	private long putChunk(long offset, long length, long total) {
+		long end = offset + length - 1;
+		ServerHealth health = ServerHealth.of(currentServer);
+		long start = System.currentTimeMillis();
+		health.begin();
+		try {
+			Header contentRange = new BasicHeader("Content-Range",
+					"bytes " + offset + "-" + end + "/" + total);
+			MeteredEntity meteredEntity = new MeteredEntity(ThrottledEntity.of(profile,
+					new FileRangeEntity(file, offset, length), metrics));
+			HttpResponse response = transport.put(currentServer + fileName,
+					new Header[] { contentRange }, meteredEntity, retryPolicy);
+			metrics.setTimeToFirstByte(meteredEntity.millisSinceSent());
+			int status = response.getStatusLine().getStatusCode();
+			if (status / 100 != 2 && status != 308) {
+				profile.log(currentServer + " " + response.getStatusLine());
+				health.failure(System.currentTimeMillis() - start, profile.getCoolDownMillis());
+				return RetryPolicy.isRetryable(status) ? offset : -1;
+			}
+			health.success(System.currentTimeMillis() - start);
+			Header range = response.getFirstHeader("Range");
+			if (offset == 0 && end + 1 < total && status != 308 && range == null) {
+				// the server took the first chunk for the whole file
+				profile.log(currentServer + " " + response.getStatusLine()
+						+ " without acknowledging the range of the first chunk");
+				rangeUnsupported = true;
+				return -1;
+			}
+			if (range != null) {
+				Matcher m = ACKNOWLEDGED_RANGE.matcher(range.getValue().trim());
+				if (m.matches()) {
+					return Math.min(end, Long.parseLong(m.group(1))) + 1;
+				}
+			}
+			return status == 308 ? offset : end + 1;
+		} catch (IOException e) {
+			profile.log(currentServer + " " + e);
+			health.failure(System.currentTimeMillis() - start, profile.getCoolDownMillis());
+			return offset;
+		}
+	}
+}
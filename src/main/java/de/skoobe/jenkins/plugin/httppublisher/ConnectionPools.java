@@ -0,0 +1,228 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.FilePath.FileCallable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps one pooled {@link HttpClient} per profile in the JVM that does the
+ * uploads, so that files published by a build reuse the same connections.
+ *
+ * Builds {@link Acquire} the pool of their profile on the node before
+ * uploading and {@link Release} it when they are done; the pool is shut down
+ * when the last build using it releases it. Uploads outside of a build
+ * acquire it for themselves, so there is no pool nobody releases.
+ *
+ * Without limits configured on the profile the pool is unbounded, so no
+ * upload ever waits for a connection. The threads of replicated uploads are
+ * pooled alongside the connections.
+ */
+public final class ConnectionPools {
+
+	/**
+	 * How often idle and expired connections are evicted, in milliseconds.
+	 */
+	private static final long EVICTION_INTERVAL = 5000;
+
+	private static final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private ConnectionPools() {
+	}
+
+	/**
+	 * @return the client of the pool of the profile
+	 * @throws IllegalStateException
+	 *             if the pool is not acquired
+	 */
+	public static HttpClient client(HttpPublisherProfile profile) {
+		Pool pool = acquired(profile);
+		pool.evictIdle();
+		return pool.client;
+	}
+
+	/**
+	 * @return the threads that send a replicated file to the servers of the
+	 *         profile, shared by all files uploaded while the pool is
+	 *         acquired
+	 * @throws IllegalStateException
+	 *             if the pool is not acquired
+	 */
+	static ExecutorService replicaExecutor(HttpPublisherProfile profile) {
+		return acquired(profile).replicaExecutor();
+	}
+
+	private static Pool acquired(HttpPublisherProfile profile) {
+		Pool pool;
+		synchronized (pools) {
+			pool = pools.get(profile.getName());
+		}
+		if (pool == null) {
+			throw new IllegalStateException("connection pool of " + profile.getName()
+					+ " is not acquired");
+		}
+		return pool;
+	}
+
+	static boolean isOpen(HttpPublisherProfile profile) {
+		synchronized (pools) {
+			return pools.containsKey(profile.getName());
+		}
+	}
+
+	static void acquire(HttpPublisherProfile profile) {
+		synchronized (pools) {
+			Pool pool = pools.get(profile.getName());
+			if (pool == null) {
+				pool = new Pool(profile);
+				pools.put(profile.getName(), pool);
+			} else {
+				pool.configure(profile);
+			}
+			pool.references++;
+		}
+	}
+
+	static void release(HttpPublisherProfile profile) {
+		Pool pool;
+		synchronized (pools) {
+			pool = pools.get(profile.getName());
+			if (pool == null || --pool.references > 0) {
+				return;
+			}
+			pools.remove(profile.getName());
+		}
+		pool.manager.shutdown();
+		pool.shutdownReplicaExecutor();
+		Http2Transport.close(profile.getName());
+	}
+
+	private static final class Pool {
+		private final PoolingClientConnectionManager manager;
+		private final DefaultHttpClient client;
+		private volatile long idleTimeout;
+		private long lastEviction = System.currentTimeMillis();
+		private int references;
+		private ExecutorService replicaExecutor;
+
+		Pool(HttpPublisherProfile profile) {
+			manager = new PoolingClientConnectionManager();
+			client = new DefaultHttpClient(manager);
+			// RetryPolicy decides about retries
+			client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+			client.setKeepAliveStrategy(new DefaultConnectionKeepAliveStrategy() {
+				@Override
+				public long getKeepAliveDuration(HttpResponse response,
+						HttpContext context) {
+					long duration = super.getKeepAliveDuration(response, context);
+					// keep connections no longer than they may stay idle
+					return duration < 0 ? idleTimeout : Math.min(duration, idleTimeout);
+				}
+			});
+			configure(profile);
+		}
+
+		void configure(HttpPublisherProfile profile) {
+			int limit = profile.getConnectionLimit();
+			manager.setMaxTotal(profile.getMaxConnections() > 0
+					? profile.getMaxConnections() : Integer.MAX_VALUE);
+			manager.setDefaultMaxPerRoute(limit > 0 ? limit : Integer.MAX_VALUE);
+			idleTimeout = TimeUnit.SECONDS.toMillis(profile.getIdleTimeout());
+			HttpParams params = client.getParams();
+			int connectTimeout = (int) TimeUnit.SECONDS.toMillis(profile.getConnectTimeout());
+			HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+			HttpConnectionParams.setSoTimeout(params,
+					(int) TimeUnit.SECONDS.toMillis(profile.getReadTimeout()));
+			// waiting for a pooled connection counts as connecting
+			params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, connectTimeout);
+		}
+
+		/**
+		 * Threads are created as needed: every replica of a file must be
+		 * running for the file to be read, so a fixed number could stall
+		 * uploads of several files at once.
+		 */
+		synchronized ExecutorService replicaExecutor() {
+			if (replicaExecutor == null) {
+				replicaExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HttpPublisher replica #"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return replicaExecutor;
+		}
+
+		synchronized void shutdownReplicaExecutor() {
+			if (replicaExecutor != null) {
+				replicaExecutor.shutdownNow();
+			}
+		}
+
+		void evictIdle() {
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				if (now - lastEviction < EVICTION_INTERVAL) {
+					return;
+				}
+				lastEviction = now;
+			}
+			manager.closeExpiredConnections();
+			manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public static class Acquire implements FileCallable<Void> {
+		private static final long serialVersionUID = 6093158123712381524L;
+		private final ProfileSnapshot profile;
+
+		public Acquire(ProfileSnapshot profile) {
+			this.profile = profile;
+		}
+
+		public Void invoke(File f, VirtualChannel channel) throws IOException,
+				InterruptedException {
+			acquire(profile.resolve(channel));
+			return null;
+		}
+	}
+
+	public static class Release implements FileCallable<Void> {
+		private static final long serialVersionUID = -2297312826180871532L;
+		private final ProfileSnapshot profile;
+
+		public Release(ProfileSnapshot profile) {
+			this.profile = profile;
+		}
+
+		public Void invoke(File f, VirtualChannel channel) throws IOException,
+				InterruptedException {
+			release(profile.resolve(channel));
+			return null;
+		}
+	}
+}
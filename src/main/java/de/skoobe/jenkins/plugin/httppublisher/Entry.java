@@ -1,8 +1,80 @@
 package de.skoobe.jenkins.plugin.httppublisher;
 
-public final class Entry {
+import hudson.Util;
+
+import java.io.Serializable;
+import java.util.Map;
+
+public final class Entry implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -4236153215893472510L;
 	/**
 	 * Like S3 Publisher: File name relative to the workspace root to publish.
 	 */
 	public String sourceFile;
+	/**
+	 * Archive format (tar, tgz or zip) to upload all matched files in, or
+	 * empty to upload them one by one.
+	 */
+	public String archive;
+	/**
+	 * Name of the uploaded archive, derived from the source if empty.
+	 */
+	public String archiveName;
+	/**
+	 * Remote path of the matched files, relative to the server URL: a
+	 * directory to upload them to, or a template using <code>{path}</code>,
+	 * <code>{dir}</code> and <code>{name}</code> of each file. May contain
+	 * build variables.
+	 */
+	public String targetPath;
+	/**
+	 * Keep the path of the files relative to the workspace instead of just
+	 * their names, unless the target path is a template.
+	 */
+	public boolean preservePath;
+
+	public ArchiveEntity.Format getArchiveFormat() {
+		return ArchiveEntity.Format.fromString(archive);
+	}
+
+	/**
+	 * @return a copy with the build variables replaced
+	 */
+	Entry expand(Map<String, String> envVars) {
+		Entry expanded = new Entry();
+		expanded.sourceFile = Util.replaceMacro(sourceFile, envVars);
+		expanded.archive = archive;
+		expanded.archiveName = Util.replaceMacro(archiveName, envVars);
+		expanded.targetPath = Util.replaceMacro(targetPath, envVars);
+		expanded.preservePath = preservePath;
+		return expanded;
+	}
+
+	/**
+	 * @param path
+	 *            file name relative to the workspace root, separated by
+	 *            <code>/</code>
+	 * @return name of the file on the server, relative to the server URL
+	 */
+	String targetOf(String path) {
+		int slash = path.lastIndexOf('/');
+		String name = path.substring(slash + 1);
+		String template = targetPath == null ? "" : targetPath.trim();
+		String target;
+		if (template.indexOf('{') >= 0) {
+			target = template.replace("{path}", path)
+					.replace("{dir}", slash < 0 ? "" : path.substring(0, slash))
+					.replace("{name}", name);
+		} else if (template.length() > 0) {
+			target = template + "/" + (preservePath ? path : name);
+		} else {
+			target = preservePath ? path : name;
+		}
+		// an empty {dir} or a prefix ending in / must not leave empty segments
+		target = target.replaceAll("/{2,}", "/");
+		return target.startsWith("/") ? target.substring(1) : target;
+	}
 }
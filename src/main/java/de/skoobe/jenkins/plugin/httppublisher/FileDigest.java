@@ -0,0 +1,96 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * SHA-256 and MD5 of a file, computed while reading it once.
+ *
+ * SHA-256 identifies content in publish manifests, MD5 is what servers
+ * usually report in ETag and Content-MD5 headers.
+ */
+public final class FileDigest {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final byte[] sha256;
+	private final byte[] md5;
+
+	private FileDigest(byte[] sha256, byte[] md5) {
+		this.sha256 = sha256;
+		this.md5 = md5;
+	}
+
+	public static FileDigest of(File file) throws IOException {
+		MessageDigest sha256 = newDigest("SHA-256");
+		MessageDigest md5 = newDigest("MD5");
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				sha256.update(buffer, 0, len);
+				md5.update(buffer, 0, len);
+			}
+		} finally {
+			in.close();
+		}
+		return new FileDigest(sha256.digest(), md5.digest());
+	}
+
+	/**
+	 * @return the digest of content digested elsewhere
+	 */
+	static FileDigest of(byte[] sha256, byte[] md5) {
+		return new FileDigest(sha256, md5);
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM is required to provide MD5 and SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String getSha256() {
+		return new String(Hex.encodeHex(sha256));
+	}
+
+	public String getMd5() {
+		return new String(Hex.encodeHex(md5));
+	}
+
+	public String getMd5Base64() {
+		return new String(Base64.encodeBase64(md5));
+	}
+
+	/**
+	 * @return true if an ETag or Content-MD5 header value denotes this content
+	 */
+	public boolean matches(String etag, String contentMd5) {
+		if (contentMd5 != null && contentMd5.trim().equals(getMd5Base64())) {
+			return true;
+		}
+		if (etag == null) {
+			return false;
+		}
+		etag = etag.trim();
+		if (etag.startsWith("W/")) {
+			// weak validators say nothing about the bytes
+			return false;
+		}
+		if (etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			etag = etag.substring(1, etag.length() - 1);
+		}
+		return etag.equalsIgnoreCase(getMd5()) || etag.equalsIgnoreCase(getSha256());
+	}
+}
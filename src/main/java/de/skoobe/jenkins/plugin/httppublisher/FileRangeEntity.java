@@ -0,0 +1,115 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Entity sending a byte range of a file.
+ */
+public class FileRangeEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+	private final long offset;
+	private final long length;
+
+	public FileRangeEntity(File file, long offset, long length) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		setContentType(ContentType.DEFAULT_BINARY.toString());
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return length;
+	}
+
+	public InputStream getContent() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		if (in.skip(offset) != offset) {
+			in.close();
+			throw new IOException(file + " is shorter than " + offset + " bytes");
+		}
+		return new BoundedInputStream(in, length);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(offset);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long remaining = length;
+			while (remaining > 0) {
+				int len = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (len == -1) {
+					throw new IOException(file + " ended before "
+							+ (offset + length) + " bytes");
+				}
+				out.write(buffer, 0, len);
+				remaining -= len;
+			}
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	private static final class BoundedInputStream extends InputStream {
+		private final InputStream in;
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long remaining) {
+			this.in = in;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b != -1) {
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = in.read(b, off, (int) Math.min(len, remaining));
+			if (read != -1) {
+				remaining -= read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
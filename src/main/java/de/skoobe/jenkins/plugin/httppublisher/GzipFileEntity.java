@@ -0,0 +1,159 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Entity sending a file gzip compressed while it is written, without a
+ * temporary file. The compressed length is not known in advance, so the
+ * request is sent with chunked transfer encoding.
+ */
+public class GzipFileEntity extends AbstractHttpEntity {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Extensions of files that are compressed already.
+	 */
+	private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<String>(
+			Arrays.asList("zip", "jar", "war", "ear", "hpi", "jpi", "apk",
+					"gz", "tgz", "bz2", "tbz2", "xz", "txz", "7z", "zst", "lz4",
+					"rpm", "deb", "png", "jpg", "jpeg", "gif", "webp", "mp3",
+					"mp4", "mkv", "pdf", "woff", "woff2"));
+
+	/**
+	 * Leading bytes of compressed formats: zip, gzip, bzip2, xz, 7z, zstd,
+	 * png and jpeg.
+	 */
+	private static final byte[][] COMPRESSED_MAGIC = {
+			{ 'P', 'K', 3, 4 },
+			{ (byte) 0x1f, (byte) 0x8b },
+			{ 'B', 'Z', 'h' },
+			{ (byte) 0xfd, '7', 'z', 'X', 'Z', 0 },
+			{ '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c },
+			{ 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },
+			{ (byte) 0x89, 'P', 'N', 'G' },
+			{ (byte) 0xff, (byte) 0xd8, (byte) 0xff } };
+
+	private final File file;
+	private volatile long compressedLength = -1;
+	private volatile long compressionTime;
+
+	public GzipFileEntity(File file) {
+		this.file = file;
+		setContentType(ContentType.DEFAULT_BINARY.toString());
+		setContentEncoding("gzip");
+		setChunked(true);
+	}
+
+	/**
+	 * Tells whether compressing a file is pointless, judging by its extension
+	 * or its first bytes.
+	 */
+	public static boolean isCompressed(File file) throws IOException {
+		String name = file.getName().toLowerCase(Locale.ENGLISH);
+		int dot = name.lastIndexOf('.');
+		if (dot >= 0 && COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1))) {
+			return true;
+		}
+		byte[] head = new byte[6];
+		int len = 0;
+		InputStream in = new FileInputStream(file);
+		try {
+			int read;
+			while (len < head.length && (read = in.read(head, len, head.length - len)) != -1) {
+				len += read;
+			}
+		} finally {
+			in.close();
+		}
+		for (final byte[] magic : COMPRESSED_MAGIC) {
+			if (startsWith(head, len, magic)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean startsWith(byte[] head, int len, byte[] magic) {
+		if (len < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (head[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return number of bytes sent by the last {@link #writeTo(OutputStream)},
+	 *         or -1 if nothing was sent yet
+	 */
+	public long getCompressedLength() {
+		return compressedLength;
+	}
+
+	/**
+	 * @return milliseconds the last {@link #writeTo(OutputStream)} took
+	 */
+	public long getCompressionTime() {
+		return compressionTime;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return -1;
+	}
+
+	/**
+	 * @return the compressed content, compressed while it is read
+	 */
+	public InputStream getContent() throws IOException {
+		return PipedContent.of(this);
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		long start = System.currentTimeMillis();
+		CountingOutputStream counter = new CountingOutputStream(out);
+		GZIPOutputStream gzip = new GZIPOutputStream(counter, BUFFER_SIZE);
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				gzip.write(buffer, 0, len);
+			}
+			// finish, but leave the connection stream open
+			gzip.finish();
+			counter.flush();
+		} finally {
+			in.close();
+		}
+		compressedLength = counter.getCount();
+		compressionTime = System.currentTimeMillis() - start;
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+}
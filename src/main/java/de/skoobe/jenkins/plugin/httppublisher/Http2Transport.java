@@ -0,0 +1,393 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+/**
+ * HTTP/2 through the <code>java.net.http</code> client of Java 11 and later:
+ * all uploads to a server share one multiplexed connection. <code>https</code>
+ * servers negotiate h2 with ALPN, <code>http</code> servers are asked to
+ * upgrade to h2c. Servers that support neither are sent HTTP/1.1.
+ * 
+ * The client is used through reflection, as the plugin still runs on older
+ * JVMs; there {@link #of(HttpPublisherProfile)} returns null. The client of
+ * a profile is replaced when its settings change and dropped with the
+ * connection pool of the profile; on Java 21 and later it is also shut down
+ * then.
+ */
+final class Http2Transport extends Transport {
+
+	private static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+	private static final Api api = Api.load();
+
+	/**
+	 * One client per profile, so that its uploads share connections.
+	 */
+	private static final Map<String, Http2Transport> transports = new HashMap<String, Http2Transport>();
+
+	private final Object client;
+	private final int connectTimeout;
+	/**
+	 * Seconds to wait for the answer to a HEAD request.
+	 */
+	private volatile int readTimeout;
+
+	private Http2Transport(Object client, int connectTimeout) {
+		this.client = client;
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return the transport of the profile, or null if this JVM has no HTTP/2
+	 *         client
+	 */
+	static Transport of(HttpPublisherProfile profile) {
+		if (api == null) {
+			profile.log("HTTP/2 needs Java 11 or later, using HTTP/1.1");
+			return null;
+		}
+		synchronized (transports) {
+			Http2Transport transport = transports.get(profile.getName());
+			if (transport == null || transport.connectTimeout != profile.getConnectTimeout()) {
+				if (transport != null) {
+					transport.shutdown();
+				}
+				try {
+					transport = new Http2Transport(api.newClient(
+							TimeUnit.SECONDS.toMillis(profile.getConnectTimeout())),
+							profile.getConnectTimeout());
+				} catch (Exception e) {
+					profile.log("HTTP/2 client not available, using HTTP/1.1: " + e);
+					return null;
+				}
+				transports.put(profile.getName(), transport);
+			}
+			transport.readTimeout = profile.getReadTimeout();
+			return transport;
+		}
+	}
+
+	/**
+	 * Drops the client of the profile, once its connection pool is shut
+	 * down.
+	 */
+	static void close(String profileName) {
+		Http2Transport transport;
+		synchronized (transports) {
+			transport = transports.remove(profileName);
+		}
+		if (transport != null) {
+			transport.shutdown();
+		}
+	}
+
+	/**
+	 * Lets the requests in flight finish and closes the connections after,
+	 * where the client supports that. Older clients stop once unreachable.
+	 */
+	private void shutdown() {
+		try {
+			// the class of the client itself is not accessible
+			Class.forName("java.net.http.HttpClient").getMethod("shutdown").invoke(client);
+		} catch (Exception e) {
+			// before Java 21
+		}
+	}
+
+	@Override
+	HttpResponse put(String url, Header[] headers, HttpEntity entity,
+			RetryPolicy retryPolicy) throws IOException {
+		Pipes pipes = new Pipes();
+		try {
+			Future<?> response;
+			try {
+				response = api.sendAsync(client, URI.create(url), "PUT", headers, entity, pipes);
+			} catch (InvocationTargetException e) {
+				throw failure(e.getCause());
+			} catch (Exception e) {
+				throw failure(e);
+			}
+			// the client only offers a timeout for the whole exchange, so
+			// the read timeout does not apply, just the deadline
+			return await(response, retryPolicy.remaining());
+		} finally {
+			// a server answering early leaves the rest of the body unread
+			pipes.close();
+		}
+	}
+
+	@Override
+	HttpResponse head(String url) throws IOException {
+		Future<?> response;
+		try {
+			response = api.sendAsync(client, URI.create(url), "HEAD", new Header[0], null, null);
+		} catch (InvocationTargetException e) {
+			throw failure(e.getCause());
+		} catch (Exception e) {
+			throw failure(e);
+		}
+		return await(response, TimeUnit.SECONDS.toMillis(readTimeout));
+	}
+
+	/**
+	 * Waits for the response and converts it.
+	 * 
+	 * @param timeout
+	 *            milliseconds, or {@link Long#MAX_VALUE} to wait as long as
+	 *            it takes
+	 */
+	private static HttpResponse await(Future<?> response, long timeout)
+			throws IOException {
+		try {
+			Object result = timeout == Long.MAX_VALUE ? response.get()
+					: response.get(timeout, TimeUnit.MILLISECONDS);
+			BasicHttpResponse httpResponse = new BasicHttpResponse(api.statusLine(result));
+			api.copyHeaders(result, httpResponse);
+			byte[] body = api.body(result);
+			if (body != null && body.length > 0) {
+				httpResponse.setEntity(new ByteArrayEntity(body));
+			}
+			return httpResponse;
+		} catch (TimeoutException e) {
+			response.cancel(true);
+			throw new IOException("deadline exceeded");
+		} catch (InterruptedException e) {
+			response.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			throw failure(e.getCause());
+		} catch (InvocationTargetException e) {
+			throw failure(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw failure(e);
+		}
+	}
+
+	private static IOException failure(Throwable cause) {
+		if (cause instanceof IOException) {
+			return (IOException) cause;
+		}
+		return new IOException(String.valueOf(cause), cause);
+	}
+
+	/**
+	 * The bodies of the attempts of one request, streamed through pipes as
+	 * entities such as {@link GzipFileEntity} only support being written.
+	 */
+	private static final class Pipes {
+		private final List<PipedContent> contents = new ArrayList<PipedContent>();
+		private boolean closed;
+
+		synchronized InputStream open(HttpEntity entity) throws IOException {
+			if (closed) {
+				throw new IOException("request is over");
+			}
+			if (!contents.isEmpty() && !entity.isRepeatable()) {
+				// such as the queue of a replica, which is drained already
+				throw new IOException("content can be sent only once");
+			}
+			PipedContent content = PipedContent.of(entity);
+			contents.add(content);
+			return content;
+		}
+
+		/**
+		 * Stops the writers that are still blocked on a body nobody reads.
+		 */
+		synchronized void close() {
+			closed = true;
+			for (final PipedContent content : contents) {
+				try {
+					content.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * The reflective view of <code>java.net.http</code>.
+	 */
+	private static final class Api {
+		private final Method newClientBuilder;
+		private final Method clientVersion;
+		private final Object http2;
+		private final Method clientConnectTimeout;
+		private final Method clientBuild;
+		private final Method ofMillis;
+		private final Method newRequestBuilder;
+		private final Method requestHeader;
+		private final Method requestMethod;
+		private final Object noBody;
+		private final Method requestBuild;
+		private final Method ofInputStream;
+		private final Method fromPublisher;
+		private final Method sendAsync;
+		private final Object ofByteArray;
+		private final Method responseBody;
+		private final Method statusCode;
+		private final Method version;
+		private final Method headers;
+		private final Method headersMap;
+		private final Class<?> supplier;
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private Api() throws Exception {
+			Class<?> client = Class.forName("java.net.http.HttpClient");
+			Class<?> clientBuilder = Class.forName("java.net.http.HttpClient$Builder");
+			Class<?> versions = Class.forName("java.net.http.HttpClient$Version");
+			Class<?> duration = Class.forName("java.time.Duration");
+			Class<?> request = Class.forName("java.net.http.HttpRequest");
+			Class<?> requestBuilder = Class.forName("java.net.http.HttpRequest$Builder");
+			Class<?> bodyPublisher = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+			Class<?> bodyPublishers = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+			Class<?> bodyHandler = Class.forName("java.net.http.HttpResponse$BodyHandler");
+			Class<?> bodyHandlers = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+			Class<?> response = Class.forName("java.net.http.HttpResponse");
+			supplier = Class.forName("java.util.function.Supplier");
+
+			newClientBuilder = client.getMethod("newBuilder");
+			clientVersion = clientBuilder.getMethod("version", versions);
+			http2 = Enum.valueOf((Class) versions, "HTTP_2");
+			clientConnectTimeout = clientBuilder.getMethod("connectTimeout", duration);
+			clientBuild = clientBuilder.getMethod("build");
+			ofMillis = duration.getMethod("ofMillis", long.class);
+			newRequestBuilder = request.getMethod("newBuilder", URI.class);
+			requestHeader = requestBuilder.getMethod("header", String.class, String.class);
+			requestMethod = requestBuilder.getMethod("method", String.class, bodyPublisher);
+			noBody = bodyPublishers.getMethod("noBody").invoke(null);
+			requestBuild = requestBuilder.getMethod("build");
+			ofInputStream = bodyPublishers.getMethod("ofInputStream", supplier);
+			fromPublisher = bodyPublishers.getMethod("fromPublisher",
+					Class.forName("java.util.concurrent.Flow$Publisher"), long.class);
+			sendAsync = client.getMethod("sendAsync", request, bodyHandler);
+			ofByteArray = bodyHandlers.getMethod("ofByteArray").invoke(null);
+			responseBody = response.getMethod("body");
+			statusCode = response.getMethod("statusCode");
+			version = response.getMethod("version");
+			headers = response.getMethod("headers");
+			headersMap = Class.forName("java.net.http.HttpHeaders").getMethod("map");
+		}
+
+		static Api load() {
+			try {
+				return new Api();
+			} catch (Exception e) {
+				return null;
+			} catch (LinkageError e) {
+				return null;
+			}
+		}
+
+		Object newClient(long connectTimeout) throws Exception {
+			Object builder = newClientBuilder.invoke(null);
+			clientVersion.invoke(builder, http2);
+			clientConnectTimeout.invoke(builder, ofMillis.invoke(null, connectTimeout));
+			return clientBuild.invoke(builder);
+		}
+
+		/**
+		 * @param entity
+		 *            the content, or null to send none
+		 */
+		Future<?> sendAsync(Object client, URI uri, String verb,
+				Header[] headers, final HttpEntity entity, final Pipes pipes)
+				throws Exception {
+			Object builder = newRequestBuilder.invoke(null, uri);
+			for (final Header header : headers) {
+				requestHeader.invoke(builder, header.getName(), header.getValue());
+			}
+			if (entity == null) {
+				requestMethod.invoke(builder, verb, noBody);
+				return (Future<?>) sendAsync.invoke(client, requestBuild.invoke(builder), ofByteArray);
+			}
+			for (final Header header : new Header[] { entity.getContentType(),
+					entity.getContentEncoding() }) {
+				if (header != null) {
+					requestHeader.invoke(builder, header.getName(), header.getValue());
+				}
+			}
+			// called again for every attempt of the client
+			Object content = Proxy.newProxyInstance(supplier.getClassLoader(),
+					new Class<?>[] { supplier }, new InvocationHandler() {
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws Throwable {
+							if (method.getName().equals("get")) {
+								return pipes.open(entity);
+							}
+							if (method.getName().equals("equals")) {
+								return proxy == args[0];
+							}
+							if (method.getName().equals("hashCode")) {
+								return System.identityHashCode(proxy);
+							}
+							return "HttpEntity supplier";
+						}
+					});
+			Object body = ofInputStream.invoke(null, content);
+			if (entity.getContentLength() >= 0) {
+				body = fromPublisher.invoke(null, body, entity.getContentLength());
+			}
+			requestMethod.invoke(builder, verb, body);
+			return (Future<?>) sendAsync.invoke(client, requestBuild.invoke(builder), ofByteArray);
+		}
+
+		StatusLine statusLine(Object response) throws IllegalAccessException,
+				InvocationTargetException {
+			int status = (Integer) statusCode.invoke(response);
+			String protocol = String.valueOf(version.invoke(response));
+			return new BasicStatusLine(protocol.equals("HTTP_2") ? HTTP_2
+					: HttpVersion.HTTP_1_1, status, "");
+		}
+
+		byte[] body(Object response) throws IllegalAccessException,
+				InvocationTargetException {
+			return (byte[]) responseBody.invoke(response);
+		}
+
+		/**
+		 * Copies the headers of the response, such as <code>ETag</code>,
+		 * leaving out HTTP/2 pseudo-headers.
+		 */
+		@SuppressWarnings("unchecked")
+		void copyHeaders(Object response, HttpResponse target)
+				throws IllegalAccessException, InvocationTargetException {
+			Map<String, List<String>> map = (Map<String, List<String>>) headersMap
+					.invoke(headers.invoke(response));
+			for (final Map.Entry<String, List<String>> header : map.entrySet()) {
+				if (header.getKey().startsWith(":")) {
+					continue;
+				}
+				for (final String value : header.getValue()) {
+					target.addHeader(header.getKey(), value);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.BufferedHttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * HTTP/1.1 through the pooled {@link HttpClient} of the profile, one
+ * connection per upload in progress.
+ */
+final class HttpClientTransport extends Transport {
+
+	private final HttpClient client;
+
+	HttpClientTransport(HttpClient client) {
+		this.client = client;
+	}
+
+	@Override
+	HttpResponse put(String url, Header[] headers, HttpEntity entity,
+			RetryPolicy retryPolicy) throws IOException {
+		HttpPut put = new HttpPut(url);
+		put.setHeaders(headers);
+		put.setEntity(entity);
+		ScheduledFuture<?> abort = retryPolicy.abortAtDeadline(put);
+		try {
+			HttpResponse response = client.execute(put);
+			if (response.getEntity() != null) {
+				// reading it all gives the connection back to the pool
+				response.setEntity(new BufferedHttpEntity(response.getEntity()));
+			}
+			return response;
+		} finally {
+			RetryPolicy.cancel(abort);
+		}
+	}
+
+	@Override
+	HttpResponse head(String url) throws IOException {
+		HttpResponse response = client.execute(new HttpHead(url));
+		EntityUtils.consume(response.getEntity());
+		return response;
+	}
+}
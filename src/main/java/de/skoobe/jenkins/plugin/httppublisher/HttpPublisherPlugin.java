@@ -1,7 +1,6 @@
 package de.skoobe.jenkins.plugin.httppublisher;
 
 import hudson.FilePath;
-import hudson.FilePath.FileCallable;
 import hudson.Launcher;
 import hudson.Extension;
 import hudson.Util;
@@ -13,7 +12,7 @@ import hudson.model.Describable;
 import hudson.model.Result;
 import hudson.model.AbstractProject;
 import hudson.model.Computer;
-import hudson.remoting.VirtualChannel;
+import hudson.remoting.RemoteOutputStream;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Publisher;
@@ -25,23 +24,41 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 import javax.servlet.ServletException;
 
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Compression;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Incremental;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Protocol;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.ServerSelection;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Verbosity;
+
 @SuppressWarnings("unchecked")
 public class HttpPublisherPlugin extends Recorder implements Describable<Publisher> {
 
 	private String profileName;
 	private final List<Entry> entries = new ArrayList<Entry>();
+	/**
+	 * Upload in the background after the build finished.
+	 */
+	private boolean async;
 	@Extension
 	public static final DescriptorImpl DESCRIPTOR = new DescriptorImpl();
+	/**
+	 * Per-file log of publishes with {@link Verbosity#SUMMARY}, relative to
+	 * the build directory.
+	 */
+	static final String DETAIL_LOG = "httppublisher-detail.log.gz";
 
 	@DataBoundConstructor
 	public HttpPublisherPlugin() {
@@ -51,9 +68,9 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 	public HttpPublisherPlugin(String profileName) {
 		super();
 		if (profileName == null) {
-			HttpPublisherProfile[] profiles = DESCRIPTOR.getProfiles();
-			if (profiles.length > 0) {
-				profileName = profiles[0].getName();
+			HttpPublisherProfile first = DESCRIPTOR.getProfile(null);
+			if (first != null) {
+				profileName = first.getName();
 			}
 		}
 		this.profileName = profileName;
@@ -64,7 +81,15 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 	}
 
 	public BuildStepMonitor getRequiredMonitorService() {
-		return BuildStepMonitor.STEP;
+		return async ? BuildStepMonitor.NONE : BuildStepMonitor.STEP;
+	}
+
+	public boolean isAsync() {
+		return async;
+	}
+
+	public void setAsync(boolean async) {
+		this.async = async;
 	}
 
 	public String getName() {
@@ -80,39 +105,9 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 	}
 	
 	public HttpPublisherProfile getProfile() {
-		HttpPublisherProfile[] profiles = DESCRIPTOR.getProfiles();
-		if (profileName == null && profiles.length > 0) {
-			return profiles[0];
-		}
-
-		for (final HttpPublisherProfile profile : profiles) {
-			if (profile.getName().equals(profileName)) {
-				return profile;
-			}
-		}
-		return null;
+		return DESCRIPTOR.getProfile(profileName);
 	}
 
-	public static class UploadTask implements FileCallable<Boolean> {
-		/**
-		 * 
-		 */
-		private static final long serialVersionUID = -4879328981975349605L;
-		private HttpPublisherProfile profile;
-		private BuildListener listener;
-	
-		public UploadTask(final HttpPublisherProfile profile, final BuildListener listener) {
-			this.profile = profile;
-			this.listener = listener;
-		}
-		
-		public Boolean invoke(File f, VirtualChannel channel)
-				throws IOException, InterruptedException {
-			profile.setLogger(listener.getLogger());
-			return profile.upload(f);
-		}
-	}
-	
 	@Override
 	public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
 			BuildListener listener) throws InterruptedException, IOException {
@@ -130,45 +125,217 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 
 		log(listener.getLogger(), "Current computer: " + Computer.currentComputer().getName());
 		log(listener.getLogger(), "Using HTTP profile: " + profile.getName());
-		profile.setLogger(listener.getLogger());
+		Map<String, String> envVars = build.getEnvironment(listener);
+		if (async) {
+			if (publishLater(build, profile, envVars, listener)) {
+				return true;
+			}
+			log(listener.getLogger(), "Background publishing is at capacity, publishing now");
+		}
+		if (!publish(build, build.getWorkspace(), profile, envVars, listener)) {
+			build.setResult(Result.UNSTABLE);
+		}
+		return true;
+	}
+
+	/**
+	 * Uploads the files of all entries found below <code>base</code>.
+	 * 
+	 * @return false if not all files could be uploaded
+	 */
+	boolean publish(AbstractBuild<?, ?> build, FilePath base,
+			HttpPublisherProfile profile, Map<String, String> envVars,
+			BuildListener listener) throws InterruptedException, IOException {
+		boolean complete = true;
+		ProfileSnapshot snapshot = ProfileSnapshot.of(profile);
+		base.act(new ConnectionPools.Acquire(snapshot));
 		try {
-			Map<String, String> envVars = build.getEnvironment(listener);
+			boolean useManifest = profile.getIncremental() == Incremental.MANIFEST;
+			PublishManifest manifest = useManifest
+					? PublishManifest.previous(build, profile) : null;
+			long skippedFiles = 0, skippedBytes = 0, duplicates = 0;
+			long start = System.currentTimeMillis();
+			List<UploadResult> results = new ArrayList<UploadResult>();
 
-			FilePath ws = build.getWorkspace();
-			
+			List<Entry> expanded = new ArrayList<Entry>(entries.size());
 			for (Entry entry : entries) {
-				String expanded = Util.replaceMacro(entry.sourceFile, envVars);
-				FilePath[] paths = ws.list(expanded);
-
-				if (paths.length == 0) {
-					log(listener.getLogger(), "No file(s) found: " + expanded);
-					String error = ws.validateAntFileMask(expanded);
-					if (error != null)
-						log(listener.getLogger(), error);
+				expanded.add(entry.expand(envVars));
+			}
+			FileOutputStream detailFile = null;
+			OutputStream detailLog = null;
+			if (profile.getVerbosity() == Verbosity.SUMMARY) {
+				// every publish step appends a gzip member; the node doing
+				// the uploads closes the stream after its last write
+				detailFile = new FileOutputStream(new File(build.getRootDir(), DETAIL_LOG), true);
+				detailLog = new RemoteOutputStream(detailFile);
+				log(listener.getLogger(), "Logging uploaded files to " + DETAIL_LOG
+						+ " in the build directory");
+			}
+			List<UploadReport> reports;
+			boolean uploaded = false;
+			try {
+				reports = base.act(new BatchUploadTask(snapshot, listener, expanded,
+						useManifest ? manifest.getDigests() : null,
+						dedupScopeOf(build), detailLog));
+				uploaded = true;
+			} finally {
+				if (!uploaded && detailFile != null) {
+					// the node may never have got to closing it
+					try {
+						detailFile.close();
+					} catch (IOException e) {
+						// the failure of the upload is what gets reported
+					}
 				}
-				
-				boolean complete = true;
-				for (FilePath src : paths) {
-					log(listener.getLogger(), "file=" + src.getName());
-					FileCallable<Boolean> task = new UploadTask(profile, listener);
-					complete = complete && src.act(task);
+			}
+
+			for (int i = 0; i < reports.size(); i++) {
+				UploadReport report = reports.get(i);
+				results.addAll(report.getResults());
+				for (final UploadResult result : report.getResults()) {
+					if (result.isDuplicate()) {
+						duplicates++;
+					} else if (result.isSkipped()) {
+						skippedFiles++;
+						skippedBytes += result.getSize();
+					}
+				}
+				if (useManifest) {
+					manifest.update(report.getResults());
 				}
-				if (!complete) {
+
+				if (report.isEmpty()) {
+					log(listener.getLogger(), "No file(s) found: " + expanded.get(i).sourceFile);
+					if (report.getError() != null)
+						log(listener.getLogger(), report.getError());
+				}
+				
+				if (!report.isComplete()) {
 					log(listener.getLogger(), "Could not upload all files");
-					build.setResult(Result.UNSTABLE);
+					complete = false;
 				}
 			}
+			addReport(build, results, System.currentTimeMillis() - start);
+			if (duplicates > 0) {
+				log(listener.getLogger(), "Coalesced " + duplicates
+						+ " duplicate upload(s)");
+			}
+			if (profile.getIncremental() != Incremental.OFF) {
+				log(listener.getLogger(), "Skipped " + skippedFiles
+						+ " unchanged file(s), saved " + skippedBytes + " bytes");
+			}
+			if (useManifest) {
+				manifest.save(build, profile.getName());
+			}
+			if (profile.getIncremental() == Incremental.INDEX) {
+				RemoteIndex index = RemoteIndex.of(profile.getName());
+				index.update(results);
+				index.save();
+			}
 		} catch (IOException e) {
 			e.printStackTrace(listener.error("Failed to upload files"));
-			build.setResult(Result.UNSTABLE);
+			complete = false;
+		} finally {
+			base.act(new ConnectionPools.Release(snapshot));
+		}
+		return complete;
+	}
+
+	/**
+	 * Copies the files of all entries out of the workspace and queues them
+	 * for uploading in the background.
+	 * 
+	 * @return false if the background queue has no room for them
+	 */
+	private boolean publishLater(AbstractBuild<?, ?> build,
+			HttpPublisherProfile profile, Map<String, String> envVars,
+			BuildListener listener) throws InterruptedException, IOException {
+		AsyncUploadQueue queue = AsyncUploadQueue.get();
+		if (queue == null) {
+			return false;
 		}
+		FilePath ws = build.getWorkspace();
+		List<String> masks = new ArrayList<String>(entries.size());
+		for (Entry entry : entries) {
+			String mask = Util.replaceMacro(entry.sourceFile, envVars).trim();
+			if (entry.getArchiveFormat() != null && mask.length() > 0
+					&& ws.child(mask).isDirectory()) {
+				// keep all files of a directory that is archived
+				mask += "/**";
+			}
+			masks.add(mask);
+		}
+		// the files are measured where they are, before taking any room
+		long[] matched = ws.act(new AsyncUpload.MatchedSize(masks));
+		long size = matched[1];
+		if (!queue.reserve(size)) {
+			return false;
+		}
+		// every publish step of the build spools on its own
+		FilePath spool = new FilePath(new File(build.getRootDir(),
+				"httppublisher-spool-" + UUID.randomUUID()));
+		AsyncUpload upload = new AsyncUpload(this, build, profile, envVars, spool,
+				size, (int) matched[0]);
+		PublishReportAction report = reportOf(build);
+		String status = report.getStatus();
+		boolean queued = false;
+		queue.spooling(build, spool);
+		try {
+			for (final String mask : masks) {
+				ws.copyRecursiveTo(mask, spool);
+			}
+			// before the upload may start running
+			report.setStatus(PublishReportAction.QUEUED);
+			queued = queue.submit(upload);
+		} finally {
+			if (!queued) {
+				report.setStatus(status);
+				queue.cancel(size);
+				spool.deleteRecursive();
+				queue.spooled(build, spool);
+			}
+		}
+		if (!queued) {
+			return false;
+		}
+		log(listener.getLogger(), "Queued " + upload.getFiles() + " file(s) (" + size
+				+ " bytes) for publishing in the background");
 		return true;
 	}
+
+	/**
+	 * The configurations of a matrix build share the scope of their parent.
+	 */
+	private static String dedupScopeOf(AbstractBuild<?, ?> build) {
+		AbstractBuild<?, ?> root = build.getRootBuild();
+		return root.getParent().getFullName() + "#" + root.getNumber();
+	}
+
+	static PublishReportAction reportOf(AbstractBuild<?, ?> build) {
+		synchronized (build) {
+			PublishReportAction report = build.getAction(PublishReportAction.class);
+			if (report == null) {
+				report = new PublishReportAction();
+				build.addAction(report);
+			}
+			return report;
+		}
+	}
+	
+	private void addReport(AbstractBuild<?, ?> build, List<UploadResult> results,
+			long elapsed) {
+		reportOf(build).add(results, elapsed);
+	}
 	
 	public static final class DescriptorImpl extends
 			BuildStepDescriptor<Publisher> {
 		
 		private final CopyOnWriteList<HttpPublisherProfile> profiles = new CopyOnWriteList<HttpPublisherProfile>();
+		/**
+		 * The profiles by name, rebuilt on the first lookup after the list
+		 * changed.
+		 */
+		private transient volatile ProfileRegistry registry;
 
 		@Override
 		public String getId() {
@@ -188,6 +355,41 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 			return profiles;
 		}
 
+		/**
+		 * @return the registry of the profiles as they are now; changes made
+		 *         through {@link #getRawProfiles()} or by loading replace it
+		 */
+		private ProfileRegistry registry() {
+			ProfileRegistry current = registry;
+			if (current == null || !current.isOf(profiles)) {
+				synchronized (this) {
+					current = registry;
+					if (current == null || !current.isOf(profiles)) {
+						current = new ProfileRegistry(profiles);
+						registry = current;
+					}
+				}
+			}
+			return current;
+		}
+
+		/**
+		 * @return the profile of that name, or the first profile for
+		 *         <code>null</code>
+		 */
+		public HttpPublisherProfile getProfile(String name) {
+			return registry().get(name);
+		}
+
+		/**
+		 * @return the version of the configuration <code>profile</code> is
+		 *         part of, or -1 if it is not configured
+		 */
+		long versionOf(HttpPublisherProfile profile) {
+			ProfileRegistry current = registry();
+			return current.contains(profile) ? current.getVersion() : -1;
+		}
+
 		public HttpPublisherPlugin newInstance(StaplerRequest req, JSONObject formData) throws FormException {
 			HttpPublisherPlugin publisher = new HttpPublisherPlugin();
 			req.bindParameters(publisher, "httppublisher.");
@@ -204,6 +406,30 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 			return new Server(hostname);
 		}
 		
+		private Incremental incrementalFrom(String value) {
+			try {
+				return Incremental.valueOf(value);
+			} catch (IllegalArgumentException e) {
+				return Incremental.OFF;
+			}
+		}
+
+		private Verbosity verbosityFrom(String value) {
+			try {
+				return Verbosity.valueOf(value);
+			} catch (IllegalArgumentException e) {
+				return Verbosity.FULL;
+			}
+		}
+
+		private ServerSelection serverSelectionFrom(String value) {
+			try {
+				return ServerSelection.valueOf(value);
+			} catch (IllegalArgumentException e) {
+				return ServerSelection.ORDERED;
+			}
+		}
+
 		private <T> void addNotNull(List<T> list, T item) {
 			if (item != null) {
 				list.add(item);
@@ -227,7 +453,35 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 			} else {
 				addNotNull(servers, serverFromJSONObject(json.getJSONObject("servers")));
 			}
-			return new HttpPublisherProfile(name, servers);
+			HttpPublisherProfile profile = new HttpPublisherProfile(name, servers);
+			profile.setMaxParallelUploads(json.optInt("maxParallelUploads", 1));
+			profile.setMaxConnections(json.optInt("maxConnections", 0));
+			profile.setMaxConnectionsPerRoute(json.optInt("maxConnectionsPerRoute", 0));
+			profile.setIdleTimeout(json.optInt("idleTimeout", 0));
+			profile.setIncremental(incrementalFrom(json.optString("incremental")));
+			profile.setChunkSize(json.optInt("chunkSize", 0));
+			profile.setChunkRetries(json.optInt("chunkRetries", 3));
+			profile.setCompression("GZIP".equals(json.optString("compression"))
+					? Compression.GZIP : Compression.NONE);
+			profile.setServerSelection(serverSelectionFrom(json.optString("serverSelection")));
+			profile.setCoolDown(json.optInt("coolDown", 0));
+			profile.setReplicate(json.optBoolean("replicate"));
+			profile.setQuorum(Util.fixEmptyAndTrim(json.optString("quorum")));
+			profile.setConnectTimeout(json.optInt("connectTimeout", 0));
+			profile.setReadTimeout(json.optInt("readTimeout", 0));
+			profile.setDeadline(json.optInt("deadline", 0));
+			profile.setMaxRetries(json.optInt("maxRetries", 2));
+			profile.setRetryBackoff(json.optInt("retryBackoff", 0));
+			profile.setProtocol("HTTP_2".equals(json.optString("protocol"))
+					? Protocol.HTTP_2 : Protocol.HTTP_1_1);
+			profile.setMaxBandwidth(json.optInt("maxBandwidth", 0));
+			profile.setZeroCopy(json.optBoolean("zeroCopy"));
+			profile.setPrefetch(json.optBoolean("prefetch"));
+			profile.setVirtualThreads(json.optBoolean("virtualThreads"));
+			profile.setBatchFiles(json.optInt("batchFiles", 0));
+			profile.setBatchSize(json.optInt("batchSize", 0));
+			profile.setVerbosity(verbosityFrom(json.optString("verbosity")));
+			return profile;
 		}
 		
 		@Override
@@ -251,7 +505,7 @@ public class HttpPublisherPlugin extends Recorder implements Describable<Publish
 		}
 
 		public HttpPublisherProfile[] getProfiles() {
-			return profiles.toArray(new HttpPublisherProfile[0]);
+			return registry().toArray();
 		}
 
 		@Override
@@ -8,18 +8,101 @@ import java.io.PrintStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.FileEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.util.EntityUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 
-public class HttpPublisherProfile implements Serializable {
+public class HttpPublisherProfile implements Serializable, Cloneable {
+
+	/**
+	 * How files that did not change since they were last published are
+	 * detected.
+	 */
+	public enum Incremental {
+		/**
+		 * Always upload every file.
+		 */
+		OFF,
+		/**
+		 * Compare against the digests recorded by the last publish.
+		 */
+		MANIFEST,
+		/**
+		 * Ask the server for the size and checksum of its copy.
+		 */
+		SERVER,
+		/**
+		 * Look up what the controller recorded the servers have, asking a
+		 * server only when its record is old.
+		 */
+		INDEX
+	}
+
+	/**
+	 * Content-Encoding applied to uploaded files.
+	 */
+	public enum Compression {
+		NONE, GZIP
+	}
+
+	/**
+	 * Order in which the servers are tried.
+	 */
+	public enum ServerSelection {
+		/**
+		 * As listed, moving on to the next one only when a server fails.
+		 */
+		ORDERED,
+		/**
+		 * Lowest average latency and error rate first.
+		 */
+		HEALTHIEST,
+		/**
+		 * Start with the next server for every upload.
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Fewest uploads in progress first.
+		 */
+		LEAST_IN_FLIGHT
+	}
+
+	/**
+	 * HTTP version used for uploads.
+	 */
+	public enum Protocol {
+		/**
+		 * One connection per upload in progress.
+		 */
+		HTTP_1_1,
+		/**
+		 * All uploads to a server multiplexed over one connection, needs
+		 * Java 11 or later on the node.
+		 */
+		HTTP_2
+	}
+
+	/**
+	 * What uploads write to the console log of the build.
+	 */
+	public enum Verbosity {
+		/**
+		 * Several lines per file.
+		 */
+		FULL,
+		/**
+		 * Periodic progress and failed files only; the lines per file go to
+		 * a compressed log in the build directory.
+		 */
+		SUMMARY
+	}
 	
 	/**
 	 * 
@@ -27,6 +110,90 @@ public class HttpPublisherProfile implements Serializable {
 	private static final long serialVersionUID = -3407333590032467265L;
 	private String name;
 	private List<Server> servers;
+	/**
+	 * Number of files uploaded at the same time. Values below 1 mean 1.
+	 */
+	private int maxParallelUploads = 1;
+	/**
+	 * Limits of the connection pool shared by the uploads of this profile.
+	 * Values below 1 leave the pool unbounded, like a client per upload.
+	 */
+	private int maxConnections;
+	private int maxConnectionsPerRoute;
+	/**
+	 * Seconds a pooled connection may stay unused before it is closed.
+	 */
+	private int idleTimeout;
+	private Incremental incremental;
+	/**
+	 * Files larger than this many megabytes are uploaded in chunks of this
+	 * size. 0 disables chunked uploads.
+	 */
+	private int chunkSize;
+	/**
+	 * How often a failed chunk is sent again before giving up on a server.
+	 */
+	private Integer chunkRetries;
+	private Compression compression;
+	private ServerSelection serverSelection;
+	/**
+	 * Seconds a server is avoided after failing repeatedly.
+	 */
+	private int coolDown;
+	/**
+	 * Upload every file to all servers instead of failing over.
+	 */
+	private boolean replicate;
+	/**
+	 * Servers that must receive a replicated file: "all", "majority" or a
+	 * number.
+	 */
+	private String quorum;
+	/**
+	 * Seconds to wait for a connection, for data on a connection and for the
+	 * upload of one file including all retries. 0 selects the defaults; the
+	 * overall deadline defaults to none.
+	 */
+	private int connectTimeout;
+	private int readTimeout;
+	private int deadline;
+	/**
+	 * How often a request failing with a transient error is sent again to
+	 * the same server.
+	 */
+	private Integer maxRetries;
+	/**
+	 * Milliseconds to wait before the first retry, doubling every time.
+	 */
+	private int retryBackoff;
+	private Protocol protocol;
+	/**
+	 * Kilobytes per second the uploads of this profile may send together on
+	 * a node, 0 for no limit.
+	 */
+	private int maxBandwidth;
+	/**
+	 * Send files without copying them through the Java heap.
+	 */
+	private boolean zeroCopy;
+	/**
+	 * Read files ahead of sending them.
+	 */
+	private boolean prefetch;
+	/**
+	 * Upload every file on a virtual thread of its own where available.
+	 */
+	private boolean virtualThreads;
+	/**
+	 * Files sent together in one multipart request, 0 to send every file on
+	 * its own.
+	 */
+	private int batchFiles;
+	/**
+	 * Kilobytes of files a multipart request may carry at most.
+	 */
+	private int batchSize;
+	private Verbosity verbosity;
 
 	private transient PrintStream logger;
 	
@@ -51,6 +218,20 @@ public class HttpPublisherProfile implements Serializable {
 	public void setLogger(PrintStream logger) {
 		this.logger = logger;
 	}
+
+	/**
+	 * @return a shallow copy without a logger, for one build to log to while
+	 *         others use the same profile
+	 */
+	HttpPublisherProfile copy() {
+		try {
+			HttpPublisherProfile copy = (HttpPublisherProfile) clone();
+			copy.logger = null;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
 	
 	public void setServers(List<Server> servers) {
 		this.servers = servers;
@@ -68,6 +249,261 @@ public class HttpPublisherProfile implements Serializable {
 		return name;
 	}
 
+	public void setMaxParallelUploads(int maxParallelUploads) {
+		this.maxParallelUploads = maxParallelUploads;
+	}
+
+	public int getMaxParallelUploads() {
+		return maxParallelUploads > 0 ? maxParallelUploads : 1;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * @return the connections the pool may hold, or 0 without a limit
+	 */
+	public int getMaxConnections() {
+		return Math.max(0, maxConnections);
+	}
+
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * @return the connections the pool may hold to one server, or 0 without
+	 *         a limit
+	 */
+	public int getMaxConnectionsPerRoute() {
+		return Math.max(0, maxConnectionsPerRoute);
+	}
+
+	/**
+	 * @return how many connections to one server the pool allows at most, or
+	 *         0 if neither limit is configured
+	 */
+	int getConnectionLimit() {
+		if (getMaxConnections() == 0 || getMaxConnectionsPerRoute() == 0) {
+			return Math.max(getMaxConnections(), getMaxConnectionsPerRoute());
+		}
+		return Math.min(getMaxConnections(), getMaxConnectionsPerRoute());
+	}
+
+	public void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public int getIdleTimeout() {
+		return idleTimeout > 0 ? idleTimeout : 30;
+	}
+
+	public void setIncremental(Incremental incremental) {
+		this.incremental = incremental;
+	}
+
+	public Incremental getIncremental() {
+		return incremental != null ? incremental : Incremental.OFF;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return Math.max(0, chunkSize);
+	}
+
+	long getChunkSizeBytes() {
+		return getChunkSize() * 1024L * 1024L;
+	}
+
+	public void setChunkRetries(int chunkRetries) {
+		this.chunkRetries = chunkRetries;
+	}
+
+	public int getChunkRetries() {
+		return chunkRetries != null ? Math.max(0, chunkRetries) : 3;
+	}
+
+	public void setCompression(Compression compression) {
+		this.compression = compression;
+	}
+
+	public Compression getCompression() {
+		return compression != null ? compression : Compression.NONE;
+	}
+
+	public void setServerSelection(ServerSelection serverSelection) {
+		this.serverSelection = serverSelection;
+	}
+
+	public ServerSelection getServerSelection() {
+		return serverSelection != null ? serverSelection : ServerSelection.ORDERED;
+	}
+
+	public void setCoolDown(int coolDown) {
+		this.coolDown = coolDown;
+	}
+
+	public int getCoolDown() {
+		return coolDown > 0 ? coolDown : 30;
+	}
+
+	long getCoolDownMillis() {
+		return getCoolDown() * 1000L;
+	}
+
+	public void setReplicate(boolean replicate) {
+		this.replicate = replicate;
+	}
+
+	public boolean isReplicate() {
+		return replicate;
+	}
+
+	public void setQuorum(String quorum) {
+		this.quorum = quorum;
+	}
+
+	public String getQuorum() {
+		return quorum != null && quorum.trim().length() > 0 ? quorum.trim() : "all";
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout > 0 ? connectTimeout : 30;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public int getReadTimeout() {
+		return readTimeout > 0 ? readTimeout : 300;
+	}
+
+	public void setDeadline(int deadline) {
+		this.deadline = deadline;
+	}
+
+	public int getDeadline() {
+		return Math.max(0, deadline);
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries != null ? Math.max(0, maxRetries) : 2;
+	}
+
+	public void setRetryBackoff(int retryBackoff) {
+		this.retryBackoff = retryBackoff;
+	}
+
+	public int getRetryBackoff() {
+		return retryBackoff > 0 ? retryBackoff : 500;
+	}
+
+	public void setProtocol(Protocol protocol) {
+		this.protocol = protocol;
+	}
+
+	public Protocol getProtocol() {
+		return protocol != null ? protocol : Protocol.HTTP_1_1;
+	}
+
+	public void setMaxBandwidth(int maxBandwidth) {
+		this.maxBandwidth = maxBandwidth;
+	}
+
+	public int getMaxBandwidth() {
+		return Math.max(0, maxBandwidth);
+	}
+
+	public void setZeroCopy(boolean zeroCopy) {
+		this.zeroCopy = zeroCopy;
+	}
+
+	public boolean isZeroCopy() {
+		return zeroCopy;
+	}
+
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public boolean isPrefetch() {
+		return prefetch;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setBatchFiles(int batchFiles) {
+		this.batchFiles = batchFiles;
+	}
+
+	public int getBatchFiles() {
+		return Math.max(0, batchFiles);
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize > 0 ? batchSize : 1024;
+	}
+
+	public void setVerbosity(Verbosity verbosity) {
+		this.verbosity = verbosity;
+	}
+
+	public Verbosity getVerbosity() {
+		return verbosity != null ? verbosity : Verbosity.FULL;
+	}
+
+	long getBatchSizeBytes() {
+		return getBatchSize() * 1024L;
+	}
+
+	/**
+	 * @return true if the file may be sent in a multipart request with
+	 *         others
+	 */
+	boolean isBatched(File file) throws IOException {
+		return getBatchFiles() > 1 && file.length() <= getBatchSizeBytes()
+				&& sendsWhole(file);
+	}
+
+	/**
+	 * @return how many servers must receive a replicated file
+	 */
+	public int getRequiredReplicas() {
+		int count = servers.size();
+		String quorum = getQuorum();
+		if (quorum.equalsIgnoreCase("majority")) {
+			return count / 2 + 1;
+		}
+		try {
+			return Math.max(1, Math.min(count, Integer.parseInt(quorum)));
+		} catch (NumberFormatException e) {
+			return count;
+		}
+	}
+
 	public void check() {
 		// do nothing for now
 	}
@@ -80,6 +516,97 @@ public class HttpPublisherProfile implements Serializable {
 		}
 	}
 
+	/**
+	 * Checks whether the content of a file is already published.
+	 * 
+	 * @param manifest
+	 *            digests recorded by the last publish, by file name
+	 */
+	public boolean isUnchanged(String fileName, File file, FileDigest digest,
+			Map<String, String> manifest) {
+		switch (getIncremental()) {
+		case MANIFEST:
+			return manifest != null
+					&& digest.getSha256().equals(manifest.get(fileName));
+		case SERVER:
+			Transport transport = Transport.of(this);
+			// a replicated file must be on enough servers, otherwise on any
+			int required = isReplicate() ? getRequiredReplicas() : 1;
+			int found = 0;
+			for (final Server currentServer : ServerSelector.order(this)) {
+				if (isOnServer(currentServer.getHostname(), transport, fileName,
+						file.length(), digest) && ++found >= required) {
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether the content of a file is already published, as far as
+	 * the {@link RemoteIndex} knows. Old records are verified with the
+	 * server, which is then noted as the server of <code>metrics</code>.
+	 * 
+	 * @param records
+	 *            what the index knows about the file, or null
+	 */
+	boolean isIndexed(String fileName, File file, FileDigest digest,
+			List<RemoteIndex.Record> records, UploadMetrics metrics) {
+		if (records == null) {
+			return false;
+		}
+		int required = isReplicate() ? getRequiredReplicas() : 1;
+		int found = 0;
+		StringBuilder verified = new StringBuilder();
+		Transport transport = null;
+		for (final RemoteIndex.Record record : records) {
+			if (!record.matches(file.length(), digest)) {
+				continue;
+			}
+			if (record.isStale()) {
+				if (transport == null) {
+					transport = Transport.of(this);
+				}
+				if (!isOnServer(record.getServer(), transport, fileName, file.length(), digest)) {
+					continue;
+				}
+				verified.append(verified.length() == 0 ? "" : " ").append(record.getServer());
+			}
+			if (++found >= required) {
+				break;
+			}
+		}
+		if (verified.length() > 0) {
+			metrics.setServer(verified.toString());
+		}
+		return found >= required;
+	}
+
+	private boolean isOnServer(String currentServer, Transport transport,
+			String fileName, long length, FileDigest digest) {
+		try {
+			HttpResponse response = transport.head(currentServer + fileName);
+			if (response.getStatusLine().getStatusCode() / 100 != 2) {
+				return false;
+			}
+			Header contentLength = response.getFirstHeader("Content-Length");
+			if (contentLength != null
+					&& !contentLength.getValue().trim().equals(String.valueOf(length))) {
+				return false;
+			}
+			Header etag = response.getFirstHeader("ETag");
+			Header contentMd5 = response.getFirstHeader("Content-MD5");
+			return digest.matches(etag == null ? null : etag.getValue(),
+					contentMd5 == null ? null : contentMd5.getValue());
+		} catch (IOException e) {
+			log(currentServer + " " + e);
+		}
+		return false;
+	}
+
 	public boolean upload(FilePath filePath) throws IOException,
 			InterruptedException {
 		if (filePath.isDirectory()) {
@@ -92,42 +619,184 @@ public class HttpPublisherProfile implements Serializable {
 		return upload(file);
 	}
 	
-	public boolean upload(File file) {
-		HttpEntity fileEntity = new FileEntity(file);
-		return upload(file.getName(), fileEntity);
+	public boolean upload(File file) throws IOException {
+		ConnectionPools.acquire(this);
+		try {
+			return upload(file.getName(), file, new UploadMetrics());
+		} finally {
+			ConnectionPools.release(this);
+		}
+	}
+
+	/**
+	 * @return true if {@link #upload(String, File, UploadMetrics)} sends the
+	 *         file as it is with a single request per server
+	 */
+	boolean sendsWhole(File file) throws IOException {
+		return !isReplicate()
+				&& !(getChunkSize() > 0 && file.length() > getChunkSizeBytes())
+				&& !(getCompression() == Compression.GZIP && !GzipFileEntity.isCompressed(file));
+	}
+
+	boolean upload(String fileName, File file, UploadMetrics metrics) throws IOException {
+		RetryPolicy retryPolicy = RetryPolicy.start(this);
+		if (isReplicate()) {
+			return new ReplicatedUpload(this, Transport.of(this),
+					ConnectionPools.replicaExecutor(this), fileName, file,
+					retryPolicy, metrics).run();
+		}
+		if (getChunkSize() > 0 && file.length() > getChunkSizeBytes()) {
+			return uploadChunked(fileName, file, retryPolicy, metrics);
+		}
+		if (getCompression() == Compression.GZIP && !GzipFileEntity.isCompressed(file)) {
+			GzipFileEntity gzipEntity = new GzipFileEntity(file);
+			boolean success = upload(fileName, gzipEntity, retryPolicy, metrics);
+			long compressed = gzipEntity.getCompressedLength();
+			if (compressed >= 0) {
+				log(String.format("compressed %d to %d bytes (%.1f%%) in %d ms",
+						file.length(), compressed,
+						file.length() == 0 ? 100.0 : compressed * 100.0 / file.length(),
+						gzipEntity.getCompressionTime()));
+			}
+			return success;
+		}
+		HttpEntity fileEntity = isZeroCopy() ? new ZeroCopyFileEntity(file)
+				: new FileEntity(file);
+		return upload(fileName, fileEntity, retryPolicy, metrics);
+	}
+
+	public boolean uploadChunked(String fileName, File file) {
+		ConnectionPools.acquire(this);
+		try {
+			return uploadChunked(fileName, file, RetryPolicy.start(this), new UploadMetrics());
+		} finally {
+			ConnectionPools.release(this);
+		}
+	}
+
+	private boolean uploadChunked(String fileName, File file,
+			RetryPolicy retryPolicy, UploadMetrics metrics) {
+		Transport transport = Transport.of(this);
+		for (final Server currentServer : ServerSelector.order(this)) {
+			ChunkedUpload chunked = new ChunkedUpload(this, transport,
+					currentServer.getHostname(), fileName, file, retryPolicy, metrics);
+			if (chunked.run()) {
+				return true;
+			}
+			if (chunked.isRangeUnsupported()) {
+				log(currentServer.getHostname() + " does not support Content-Range, uploading "
+						+ fileName + " in one request");
+				HttpEntity fileEntity = isZeroCopy() ? new ZeroCopyFileEntity(file)
+						: new FileEntity(file);
+				if (tryUpload(currentServer.getHostname(), transport, fileName,
+						fileEntity, retryPolicy, metrics)) {
+					return true;
+				}
+			}
+			if (retryPolicy.isExpired()) {
+				log("deadline of " + getDeadline() + " s exceeded for " + fileName);
+				break;
+			}
+		}
+		return false;
 	}
 	
 	public boolean upload(String fileName, HttpEntity fileEntity) {
-		HttpClient client = new DefaultHttpClient();
+		ConnectionPools.acquire(this);
+		try {
+			return upload(fileName, fileEntity, RetryPolicy.start(this), new UploadMetrics());
+		} finally {
+			ConnectionPools.release(this);
+		}
+	}
+
+	boolean upload(String fileName, HttpEntity fileEntity, UploadMetrics metrics) {
+		return upload(fileName, fileEntity, RetryPolicy.start(this), metrics);
+	}
+
+	private boolean upload(String fileName, HttpEntity fileEntity,
+			RetryPolicy retryPolicy, UploadMetrics metrics) {
+		Transport transport = Transport.of(this);
 		
 		boolean success = false;
 
-		for (final Server currentServer : servers) {
-			success = tryUpload(currentServer.getHostname(), client, fileName,
-					fileEntity, logger);
+		for (final Server currentServer : ServerSelector.order(this)) {
+			success = tryUpload(currentServer.getHostname(), transport, fileName,
+					fileEntity, retryPolicy, metrics);
 			if (success)
 				break;
+			if (retryPolicy.isExpired()) {
+				log("deadline of " + getDeadline() + " s exceeded for " + fileName);
+				break;
+			}
 		}
 
 		return success;
 	}
 
-	private boolean tryUpload(String currentServer, HttpClient client,
-			String fileName, HttpEntity fileEntity, PrintStream logger) {
-		try {
-			HttpPut put = new HttpPut(currentServer + fileName);
-			put.setEntity(fileEntity);
-			HttpResponse response = client.execute(put);
-			log(currentServer + " " + response.getStatusLine().toString() + " (uploaded size: " +fileEntity.getContentLength() + ")");
-			EntityUtils.consume(response.getEntity());
-			if (response.getStatusLine().getStatusCode() / 100 == 2) {
+	private boolean tryUpload(String currentServer, Transport transport,
+			String fileName, HttpEntity fileEntity, RetryPolicy retryPolicy,
+			UploadMetrics metrics) {
+		for (int attempt = 0;; attempt++) {
+			int status = putOnce(currentServer, transport, fileName, fileEntity,
+					retryPolicy, metrics);
+			if (status / 100 == 2) {
 				return true;
 			}
+			if (!retryPolicy.shouldRetry(attempt, status, HttpPut.METHOD_NAME, fileEntity)) {
+				return false;
+			}
+			long delay = retryPolicy.backoff(attempt);
+			metrics.addRetry();
+			log(currentServer + " retry " + (attempt + 1) + "/"
+					+ retryPolicy.getMaxRetries() + " in " + delay + " ms");
+			try {
+				if (!retryPolicy.sleep(delay)) {
+					return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return the response status, or {@link RetryPolicy#IO_ERROR}
+	 */
+	private int putOnce(String currentServer, Transport transport,
+			String fileName, HttpEntity fileEntity, RetryPolicy retryPolicy,
+			UploadMetrics metrics) {
+		ServerHealth health = ServerHealth.of(currentServer);
+		long start = System.currentTimeMillis();
+		health.begin();
+		int status = RetryPolicy.IO_ERROR;
+		try {
+			MeteredEntity meteredEntity = new MeteredEntity(
+					ThrottledEntity.of(this, fileEntity, metrics));
+			HttpResponse response = transport.put(currentServer + fileName,
+					meteredEntity, retryPolicy);
+			StatusLine statusLine = response.getStatusLine();
+			long timeToFirstByte = meteredEntity.millisSinceSent();
+			log(currentServer + " " + statusLine.toString() + " (uploaded size: " +fileEntity.getContentLength() + ")");
+			status = statusLine.getStatusCode();
+			if (status / 100 == 2) {
+				metrics.setServer(currentServer);
+				metrics.addBytesSent(meteredEntity.getBytesSent());
+				metrics.setTimeToFirstByte(timeToFirstByte);
+				Header etag = response.getFirstHeader("ETag");
+				metrics.setEtag(etag == null ? null : etag.getValue());
+			}
 		} catch (ClientProtocolException e) {
 			log(currentServer + " " + e);
 		} catch (IOException e) {
 			log(currentServer + " " + e);
 		}
-		return false;
+		if (status / 100 == 2) {
+			health.success(System.currentTimeMillis() - start);
+		} else {
+			health.failure(System.currentTimeMillis() - start, getCoolDownMillis());
+		}
+		return status;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,194 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+/**
+ * An Ant file mask (comma or space separated patterns such as
+ * <code>target/*.jar, **&#47;*.deb</code>) split into path segments once, so
+ * that it can be matched against many paths without parsing it again.
+ *
+ * Compiled masks are cached, as the same masks are used by every build of a
+ * job.
+ */
+final class MaskPattern {
+
+	private static final int CACHE_SIZE = 1000;
+
+	private static final ConcurrentMap<String, MaskPattern> cache = new ConcurrentHashMap<String, MaskPattern>();
+
+	private final String mask;
+	private final String[][] patterns;
+
+	private MaskPattern(String mask) {
+		this.mask = mask;
+		List<String[]> patterns = new ArrayList<String[]>();
+		for (String pattern : mask.split("[,\\s]+")) {
+			pattern = pattern.replace('\\', '/');
+			if (pattern.length() == 0) {
+				continue;
+			}
+			if (pattern.endsWith("/")) {
+				// like Ant, "dir/" stands for "dir/**"
+				pattern += "**";
+			}
+			patterns.add(tokenize(pattern));
+		}
+		this.patterns = patterns.toArray(new String[patterns.size()][]);
+	}
+
+	static MaskPattern compile(String mask) {
+		MaskPattern pattern = cache.get(mask);
+		if (pattern == null) {
+			if (cache.size() >= CACHE_SIZE) {
+				cache.clear();
+			}
+			pattern = new MaskPattern(mask);
+			cache.put(mask, pattern);
+		}
+		return pattern;
+	}
+
+	static MaskPattern compile(String[] patterns) {
+		StringBuilder mask = new StringBuilder();
+		for (final String pattern : patterns) {
+			mask.append(mask.length() == 0 ? "" : ",").append(pattern);
+		}
+		return compile(mask.toString());
+	}
+
+	static String[] tokenize(String path) {
+		List<String> tokens = new ArrayList<String>();
+		for (final String token : path.split("/")) {
+			if (token.length() > 0 && !token.equals(".")) {
+				tokens.add(token);
+			}
+		}
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	String getMask() {
+		return mask;
+	}
+
+	boolean isEmpty() {
+		return patterns.length == 0;
+	}
+
+	/**
+	 * @return whether the path, split into segments, matches one of the
+	 *         patterns
+	 */
+	boolean matches(String[] path) {
+		for (final String[] pattern : patterns) {
+			if (match(pattern, 0, path, 0)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether a path below the directory might match one of the
+	 *         patterns, so the directory has to be scanned
+	 */
+	boolean couldMatchBelow(String[] dir) {
+		for (final String[] pattern : patterns) {
+			if (matchStart(pattern, dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether every path below the directory matches one of the
+	 *         patterns, e.g. <code>**&#47;.git/**</code> for <code>a/.git</code>
+	 */
+	boolean matchesAllBelow(String[] dir) {
+		for (final String[] pattern : patterns) {
+			int last = pattern.length - 1;
+			if (last >= 0 && pattern[last].equals("**")
+					&& match(pattern, 0, dir, 0, last)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the leading segments of the first pattern that contain no
+	 *         wildcards, as a relative path
+	 */
+	String literalBase() {
+		if (patterns.length == 0) {
+			return "";
+		}
+		StringBuilder base = new StringBuilder();
+		String[] pattern = patterns[0];
+		for (int i = 0; i < pattern.length - 1; i++) {
+			if (pattern[i].indexOf('*') >= 0 || pattern[i].indexOf('?') >= 0) {
+				break;
+			}
+			base.append(base.length() == 0 ? "" : "/").append(pattern[i]);
+		}
+		return base.toString();
+	}
+
+	private static boolean match(String[] pattern, int p, String[] path, int s) {
+		return match(pattern, p, path, s, pattern.length);
+	}
+
+	private static boolean match(String[] pattern, int p, String[] path,
+			int s, int end) {
+		while (p < end) {
+			if (pattern[p].equals("**")) {
+				// skip repeated "**"
+				while (p + 1 < end && pattern[p + 1].equals("**")) {
+					p++;
+				}
+				if (p + 1 == end) {
+					return true;
+				}
+				for (int i = s; i <= path.length; i++) {
+					if (match(pattern, p + 1, path, i, end)) {
+						return true;
+					}
+				}
+				return false;
+			}
+			if (s >= path.length || !SelectorUtils.match(pattern[p], path[s], true)) {
+				return false;
+			}
+			p++;
+			s++;
+		}
+		return s == path.length;
+	}
+
+	private static boolean matchStart(String[] pattern, String[] dir) {
+		int p = 0;
+		for (int s = 0; s < dir.length; s++, p++) {
+			if (p >= pattern.length) {
+				return false;
+			}
+			if (pattern[p].equals("**")) {
+				return true;
+			}
+			if (!SelectorUtils.match(pattern[p], dir[s], true)) {
+				return false;
+			}
+		}
+		// a file below the directory still needs at least one more segment
+		return p < pattern.length;
+	}
+
+	@Override
+	public String toString() {
+		return mask;
+	}
+}
@@ -0,0 +1,73 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Records how many bytes of the wrapped entity were sent and when the last
+ * one was.
+ */
+final class MeteredEntity extends HttpEntityWrapper implements ChannelWritable {
+
+	private volatile long bytesSent;
+	private volatile long sentAt;
+
+	MeteredEntity(HttpEntity entity) {
+		super(entity);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(out);
+		try {
+			super.writeTo(counter);
+		} finally {
+			bytesSent = counter.getCount();
+			sentAt = System.currentTimeMillis();
+		}
+	}
+
+	public boolean isChannelWritable() {
+		return wrappedEntity instanceof ChannelWritable
+				&& ((ChannelWritable) wrappedEntity).isChannelWritable();
+	}
+
+	public Transfer open() throws IOException {
+		final Transfer transfer = ((ChannelWritable) wrappedEntity).open();
+		return new Transfer() {
+			public long getLength() {
+				return transfer.getLength();
+			}
+
+			public long writeTo(WritableByteChannel channel) throws IOException {
+				long sent = 0;
+				try {
+					sent = transfer.writeTo(channel);
+					return sent;
+				} finally {
+					bytesSent = sent;
+					sentAt = System.currentTimeMillis();
+				}
+			}
+
+			public void close() throws IOException {
+				transfer.close();
+			}
+		};
+	}
+
+	long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * @return milliseconds since the body was sent, or -1 if it was not
+	 */
+	long millisSinceSent() {
+		return sentAt == 0 ? -1 : System.currentTimeMillis() - sentAt;
+	}
+}
@@ -0,0 +1,88 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * The content of an entity that is built while it is written, such as a
+ * compressed file or an archive, as a stream to read. A daemon thread writes
+ * the entity into a pipe; closing the stream stops it. A failure of the
+ * writer is thrown by the reader instead of ending the stream early.
+ */
+final class PipedContent extends PipedInputStream {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final Thread writer;
+	private volatile IOException failure;
+
+	private PipedContent(final HttpEntity entity) throws IOException {
+		super(BUFFER_SIZE);
+		final PipedOutputStream out = new PipedOutputStream(this);
+		writer = new Thread("HttpPublisher content writer #" + threadNumber.incrementAndGet()) {
+			@Override
+			public void run() {
+				try {
+					entity.writeTo(out);
+				} catch (IOException e) {
+					failure = e;
+				} catch (RuntimeException e) {
+					failure = new IOException(String.valueOf(e), e);
+				} finally {
+					try {
+						out.close();
+					} catch (IOException e) {
+						// the reader is gone
+					}
+				}
+			}
+		};
+		writer.setDaemon(true);
+	}
+
+	/**
+	 * Starts writing the entity.
+	 */
+	static PipedContent of(HttpEntity entity) throws IOException {
+		PipedContent content = new PipedContent(entity);
+		content.writer.start();
+		return content;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		int b = super.read();
+		if (b == -1) {
+			checkFailure();
+		}
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read == -1) {
+			checkFailure();
+		}
+		return read;
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		super.close();
+		// a writer blocked on a full pipe notices only when interrupted
+		writer.interrupt();
+	}
+}
@@ -0,0 +1,523 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Reads files ahead of sending them, so that slow disks and slow networks do
+ * not wait for each other. Files pass up to three stages, each on threads of
+ * its own:
+ * <ol>
+ * <li>readers fill buffers reserved from the {@link BufferPool} with the
+ * files, in the order they will be sent,</li>
+ * <li>optionally one thread computes the digests of the files that fit into
+ * their buffers, and</li>
+ * <li>the upload threads send the buffers and hand them back to the reader.</li>
+ * </ol>
+ * Every file gets a few buffers of its own, so reading never gets further
+ * ahead of sending than those. The time a stage waits for the one before or
+ * after it is recorded per file.
+ */
+final class PrefetchPipeline {
+
+	/**
+	 * Buffers each file gets from the pool.
+	 */
+	static final int BUFFERS_PER_FILE = 4;
+
+	/**
+	 * Threads reading files at the same time.
+	 */
+	static final int READERS = 2;
+
+	/**
+	 * Milliseconds to wait for buffers before sending a file from disk. Once
+	 * that happened, the pool is taken to be busy and later files only get
+	 * buffers that are free right away, until a file of the pipeline gives
+	 * its buffers back.
+	 */
+	static final long RESERVE_TIMEOUT = 1000;
+
+	/**
+	 * Files are sent from memory in chunks of this size.
+	 */
+	private static final int COPY_SIZE = 64 * 1024;
+
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final BufferPool pool;
+	private final boolean digest;
+	private final Prefetched[] prefetched;
+	/**
+	 * The files to read, in the order they are sent.
+	 */
+	private final List<Prefetched> order = new ArrayList<Prefetched>();
+	private int next;
+	/**
+	 * Set when reserving buffers timed out, cleared when buffers of a file
+	 * are given back.
+	 */
+	private volatile boolean contended;
+	private volatile boolean closed;
+	private ExecutorService executor;
+
+	/**
+	 * @param files
+	 *            files in the order they are sent, null for the ones not to
+	 *            read ahead
+	 * @param digest
+	 *            compute the digests of the files up to
+	 *            {@link #digestAheadLimit(BufferPool)} while reading them;
+	 *            larger files are read ahead without
+	 */
+	PrefetchPipeline(BufferPool pool, List<File> files, boolean digest) {
+		this.pool = pool;
+		this.digest = digest;
+		this.prefetched = new Prefetched[files.size()];
+		for (int i = 0; i < prefetched.length; i++) {
+			if (files.get(i) != null) {
+				prefetched[i] = new Prefetched(files.get(i));
+				order.add(prefetched[i]);
+			}
+		}
+	}
+
+	/**
+	 * Largest file whose digest is known before it is sent: files up to this
+	 * size fit into the buffers of a file.
+	 */
+	static long digestAheadLimit(BufferPool pool) {
+		return (long) Math.min(BUFFERS_PER_FILE, pool.getSize()) * BufferPool.BUFFER_SIZE;
+	}
+
+	void start() {
+		if (order.isEmpty()) {
+			return;
+		}
+		int readers = Math.min(READERS, order.size());
+		executor = Executors.newFixedThreadPool(readers + (digest ? 1 : 0),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "HttpPublisher prefetch #"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		for (int i = 0; i < readers; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					Prefetched file;
+					while ((file = nextToRead()) != null) {
+						file.read();
+					}
+				}
+			});
+		}
+		if (digest) {
+			executor.execute(new Runnable() {
+				public void run() {
+					for (final Prefetched file : order) {
+						if (file.digested) {
+							file.digest();
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the entity to send the file at position <code>i</code> with,
+	 *         or null if it is not read ahead
+	 */
+	Prefetched get(int i) {
+		return prefetched[i];
+	}
+
+	/**
+	 * Stops reading and gives the buffers of files that were not released
+	 * back to the pool. Files still being read or digested give theirs back
+	 * when they are done.
+	 */
+	void close() throws InterruptedException {
+		if (executor == null) {
+			return;
+		}
+		closed = true;
+		executor.shutdownNow();
+		executor.awaitTermination(10, TimeUnit.SECONDS);
+		for (final Prefetched file : order) {
+			file.returnBuffersIfDone();
+		}
+	}
+
+	/**
+	 * Reserves the buffers of the next file while holding the lock, so files
+	 * get their buffers in the order they are sent.
+	 */
+	private synchronized Prefetched nextToRead() {
+		while (next < order.size()) {
+			Prefetched file = order.get(next++);
+			long start = System.currentTimeMillis();
+			try {
+				boolean reserved = file.reserve(contended ? 0 : RESERVE_TIMEOUT);
+				file.networkWait += System.currentTimeMillis() - start;
+				if (reserved) {
+					return file;
+				}
+				if (!file.isCancelled()) {
+					// do not keep every later file waiting for the busy pool
+					contended = true;
+				}
+			} catch (InterruptedException e) {
+				file.skip();
+				while (next < order.size()) {
+					order.get(next++).skip();
+				}
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A file read ahead, sent from the buffers it was read into the first
+	 * time it is written and read from disk again after that.
+	 */
+	final class Prefetched extends AbstractHttpEntity {
+		private final File file;
+		/**
+		 * Whether the digest stage sees the file.
+		 */
+		private final boolean digested;
+		private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<ByteBuffer>();
+		private final BlockingQueue<ByteBuffer> read = new LinkedBlockingQueue<ByteBuffer>();
+		private final BlockingQueue<ByteBuffer> ready;
+		/**
+		 * Counted down by the reader and the digest stage when they are done
+		 * with the file.
+		 */
+		private final CountDownLatch done;
+		/**
+		 * Counted down when the digest is known, or when it cannot be known
+		 * before the file is sent.
+		 */
+		private final CountDownLatch digestAhead = new CountDownLatch(1);
+		private List<ByteBuffer> buffers;
+		private boolean started;
+		private boolean cancelled;
+		private boolean consumed;
+		/**
+		 * Set if no buffers could be reserved for the file.
+		 */
+		private volatile boolean skipped;
+		private volatile IOException error;
+		private volatile FileDigest fileDigest;
+		private volatile long diskWait;
+		private volatile long networkWait;
+
+		Prefetched(File file) {
+			this.file = file;
+			this.digested = digest && file.length() <= digestAheadLimit(pool);
+			this.done = new CountDownLatch(digested ? 2 : 1);
+			this.ready = digested ? new LinkedBlockingQueue<ByteBuffer>() : read;
+			setContentType(ContentType.DEFAULT_BINARY.toString());
+		}
+
+		/**
+		 * @return false if the file is not read ahead
+		 */
+		private boolean reserve(long timeout) throws InterruptedException {
+			synchronized (this) {
+				if (cancelled) {
+					return false;
+				}
+				started = true;
+			}
+			List<ByteBuffer> reserved = pool.reserve(BUFFERS_PER_FILE, timeout);
+			if (reserved == null) {
+				// the pool is busy with other uploads
+				skip();
+				return false;
+			}
+			synchronized (this) {
+				buffers = reserved;
+			}
+			free.addAll(reserved);
+			return true;
+		}
+
+		private void read() {
+			IOException failure = null;
+			try {
+				RandomAccessFile in = new RandomAccessFile(file, "r");
+				try {
+					FileChannel channel = in.getChannel();
+					long length = channel.size();
+					while (!isCancelled() && channel.position() < length) {
+						ByteBuffer buffer = free.poll();
+						if (buffer == null) {
+							// the digest cannot be known before sending starts
+							digestAhead.countDown();
+							long start = System.currentTimeMillis();
+							buffer = free.take();
+							networkWait += System.currentTimeMillis() - start;
+						}
+						buffer.clear();
+						int len;
+						do {
+							len = channel.read(buffer);
+						} while (len != -1 && buffer.hasRemaining());
+						buffer.flip();
+						read.add(buffer);
+						if (len == -1) {
+							break;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				failure = new IOException("reading ahead was interrupted");
+			}
+			finishReading(failure);
+		}
+
+		/**
+		 * Sends the file from disk instead.
+		 */
+		private void skip() {
+			skipped = true;
+			finishReading(null);
+		}
+
+		private void finishReading(IOException failure) {
+			synchronized (this) {
+				started = true;
+			}
+			error = failure;
+			read.add(END);
+			if (!digested) {
+				digestAhead.countDown();
+			}
+			done.countDown();
+			returnBuffersIfClosed();
+		}
+
+		private void digest() {
+			MessageDigest sha256 = FileDigest.newDigest("SHA-256");
+			MessageDigest md5 = FileDigest.newDigest("MD5");
+			try {
+				for (;;) {
+					ByteBuffer buffer = read.take();
+					if (buffer == END) {
+						break;
+					}
+					sha256.update(buffer.duplicate());
+					md5.update(buffer.duplicate());
+					ready.add(buffer);
+				}
+				if (error == null && !skipped && !isCancelled()) {
+					fileDigest = FileDigest.of(sha256.digest(), md5.digest());
+				}
+			} catch (InterruptedException e) {
+				error = new IOException("digesting ahead was interrupted");
+			} finally {
+				ready.add(END);
+				digestAhead.countDown();
+				done.countDown();
+				returnBuffersIfClosed();
+			}
+		}
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * @return the digest of the file, waiting for it to be read if needed,
+		 *         or null if it could not be computed ahead
+		 */
+		FileDigest getDigest() throws InterruptedException {
+			if (!digested) {
+				return null;
+			}
+			digestAhead.await();
+			return fileDigest;
+		}
+
+		/**
+		 * Gives the buffers of the file back to the pool, whether it was sent
+		 * or not.
+		 */
+		void release() throws InterruptedException {
+			synchronized (this) {
+				cancelled = true;
+				if (!started) {
+					// reading never starts, let the digest stage skip it
+					started = true;
+					read.add(END);
+					digestAhead.countDown();
+					done.countDown();
+					if (digested) {
+						done.countDown();
+					}
+					return;
+				}
+			}
+			// unblock the reader until it notices it is cancelled
+			while (!done.await(100, TimeUnit.MILLISECONDS)) {
+				drain();
+			}
+			returnBuffers();
+		}
+
+		private synchronized void returnBuffers() {
+			if (buffers != null) {
+				pool.release(buffers);
+				buffers = null;
+				// the time out may have been this pipeline holding the pool
+				contended = false;
+			}
+		}
+
+		private void returnBuffersIfDone() {
+			if (done.getCount() == 0) {
+				returnBuffers();
+			}
+		}
+
+		/**
+		 * Gives the buffers back once the pipeline was closed while the file
+		 * was still being read or digested.
+		 */
+		private void returnBuffersIfClosed() {
+			if (closed) {
+				returnBuffersIfDone();
+			}
+		}
+
+		private void drain() {
+			ByteBuffer buffer;
+			while ((buffer = ready.poll()) != null) {
+				if (buffer != END) {
+					free.add(buffer);
+				}
+			}
+		}
+
+		/**
+		 * @return milliseconds sending waited for the file to be read
+		 */
+		long getDiskWait() {
+			return diskWait;
+		}
+
+		/**
+		 * @return milliseconds reading waited for buffers, that is for files
+		 *         to be sent
+		 */
+		long getNetworkWait() {
+			return networkWait;
+		}
+
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		public long getContentLength() {
+			return file.length();
+		}
+
+		public InputStream getContent() throws IOException {
+			return new FileInputStream(file);
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			boolean first;
+			synchronized (this) {
+				first = !consumed && !cancelled;
+				consumed = true;
+			}
+			if (!first) {
+				// a retry, the buffers are gone
+				writeFile(out);
+				return;
+			}
+			byte[] chunk = new byte[COPY_SIZE];
+			try {
+				for (;;) {
+					long start = System.currentTimeMillis();
+					ByteBuffer buffer = ready.take();
+					diskWait += System.currentTimeMillis() - start;
+					if (buffer == END) {
+						ready.add(END);
+						if (skipped) {
+							writeFile(out);
+							return;
+						}
+						break;
+					}
+					try {
+						while (buffer.hasRemaining()) {
+							int len = Math.min(chunk.length, buffer.remaining());
+							buffer.get(chunk, 0, len);
+							out.write(chunk, 0, len);
+						}
+					} finally {
+						free.add(buffer);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while sending " + file);
+			}
+			if (error != null) {
+				throw error;
+			}
+			out.flush();
+		}
+
+		private void writeFile(OutputStream out) throws IOException {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[COPY_SIZE];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+				out.flush();
+			} finally {
+				in.close();
+			}
+		}
+	}
+}
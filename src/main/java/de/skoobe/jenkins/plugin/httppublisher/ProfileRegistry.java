@@ -0,0 +1,97 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable snapshot of the configured profiles, indexed by name so that
+ * builds find their profile without copying or scanning the list.
+ *
+ * A new registry is built whenever the list of profiles changes; its version
+ * tells nodes whether the profiles they cached are still current.
+ */
+final class ProfileRegistry {
+
+	/**
+	 * Seeded with the clock so versions are not reused after a restart of
+	 * the controller while nodes still hold profiles of the last one.
+	 */
+	private static final AtomicLong versions = new AtomicLong(System.currentTimeMillis());
+
+	private final HttpPublisherProfile[] profiles;
+	private final Map<String, HttpPublisherProfile> byName;
+	private final long version;
+
+	ProfileRegistry(Iterable<HttpPublisherProfile> profiles) {
+		this(toArray(profiles));
+	}
+
+	private ProfileRegistry(HttpPublisherProfile[] profiles) {
+		this.profiles = profiles;
+		Map<String, HttpPublisherProfile> byName = new HashMap<String, HttpPublisherProfile>();
+		for (final HttpPublisherProfile profile : profiles) {
+			// like the list lookup it replaces, the first profile of a name wins
+			if (profile.getName() != null && !byName.containsKey(profile.getName())) {
+				byName.put(profile.getName(), profile);
+			}
+		}
+		this.byName = Collections.unmodifiableMap(byName);
+		this.version = versions.incrementAndGet();
+	}
+
+	private static HttpPublisherProfile[] toArray(Iterable<HttpPublisherProfile> profiles) {
+		List<HttpPublisherProfile> list = new ArrayList<HttpPublisherProfile>();
+		for (final HttpPublisherProfile profile : profiles) {
+			list.add(profile);
+		}
+		return list.toArray(new HttpPublisherProfile[list.size()]);
+	}
+
+	/**
+	 * @return the profile of that name, or the first profile for
+	 *         <code>null</code>
+	 */
+	HttpPublisherProfile get(String name) {
+		if (name == null) {
+			return profiles.length > 0 ? profiles[0] : null;
+		}
+		return byName.get(name);
+	}
+
+	/**
+	 * @return true if <code>profile</code> is the one registered under its
+	 *         name, and not a copy or one that was replaced since
+	 */
+	boolean contains(HttpPublisherProfile profile) {
+		return profile.getName() != null && byName.get(profile.getName()) == profile;
+	}
+
+	/**
+	 * Compares the profiles by identity, which is cheaper than building the
+	 * index again.
+	 * 
+	 * @return true if the registry holds exactly these profiles, in this
+	 *         order
+	 */
+	boolean isOf(Iterable<HttpPublisherProfile> current) {
+		int i = 0;
+		for (final HttpPublisherProfile profile : current) {
+			if (i >= profiles.length || profiles[i++] != profile) {
+				return false;
+			}
+		}
+		return i == profiles.length;
+	}
+
+	HttpPublisherProfile[] toArray() {
+		return profiles.clone();
+	}
+
+	long getVersion() {
+		return version;
+	}
+}
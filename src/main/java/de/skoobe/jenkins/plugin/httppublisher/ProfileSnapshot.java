@@ -0,0 +1,114 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Names a version of a configured profile for the remoting calls of a
+ * publish. Nodes keep the profiles they fetched by version, so a profile
+ * travels to a node once per configuration change instead of with every
+ * call. Profiles that are not configured, such as the ones of tests, are
+ * sent along instead.
+ */
+final class ProfileSnapshot implements Serializable {
+	private static final long serialVersionUID = 3914026771250986823L;
+
+	/**
+	 * Profiles kept per JVM, enough for the profiles of the builds running
+	 * at the same time.
+	 */
+	private static final int CACHE_SIZE = 64;
+
+	/**
+	 * Profiles fetched by the JVM this runs in, by name and the version that
+	 * was asked for. The least recently used ones are dropped.
+	 */
+	private static final Map<String, ProfileSnapshot> cache = new LinkedHashMap<String, ProfileSnapshot>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ProfileSnapshot> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final String name;
+	private final long version;
+	private final HttpPublisherProfile profile;
+
+	private ProfileSnapshot(String name, long version, HttpPublisherProfile profile) {
+		this.name = name;
+		this.version = version;
+		this.profile = profile;
+	}
+
+	static ProfileSnapshot of(HttpPublisherProfile profile) {
+		long version = HttpPublisherPlugin.DESCRIPTOR.versionOf(profile);
+		if (version < 0) {
+			return new ProfileSnapshot(profile.getName(), version, profile);
+		}
+		return new ProfileSnapshot(profile.getName(), version, null);
+	}
+
+	/**
+	 * @param channel
+	 *            the channel to the controller
+	 * @return a copy of the profile for the caller to log to
+	 */
+	HttpPublisherProfile resolve(VirtualChannel channel) throws IOException,
+			InterruptedException {
+		if (profile != null) {
+			return profile.copy();
+		}
+		synchronized (cache) {
+			ProfileSnapshot cached = cache.get(keyOf(name, version));
+			if (cached != null) {
+				return cached.profile.copy();
+			}
+		}
+		ProfileSnapshot fetched = channel.call(new Fetch(name));
+		synchronized (cache) {
+			// the profile may have changed since this snapshot was taken;
+			// later calls asking for either version get the fetched one
+			cache.put(keyOf(name, version), fetched);
+			cache.put(keyOf(name, fetched.version), fetched);
+		}
+		return fetched.profile.copy();
+	}
+
+	private static String keyOf(String name, long version) {
+		return version + "\t" + name;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * Fetches the current version of a profile from the controller.
+	 */
+	private static final class Fetch implements Callable<ProfileSnapshot, IOException> {
+		private static final long serialVersionUID = -5308839169322401752L;
+
+		private final String name;
+
+		Fetch(String name) {
+			this.name = name;
+		}
+
+		public ProfileSnapshot call() throws IOException {
+			HttpPublisherProfile profile = HttpPublisherPlugin.DESCRIPTOR.getProfile(name);
+			if (profile == null) {
+				throw new IOException("HTTP profile " + name + " was removed");
+			}
+			return new ProfileSnapshot(name,
+					HttpPublisherPlugin.DESCRIPTOR.versionOf(profile), profile);
+		}
+	}
+}
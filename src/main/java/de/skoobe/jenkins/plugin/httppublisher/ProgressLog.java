@@ -0,0 +1,120 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the console log of huge publishes short: the lines logged per file
+ * are gzip compressed into a separate stream, while the console gets a
+ * progress line every few seconds and a line per failed file.
+ */
+final class ProgressLog {
+
+	private static final String PREFIX = ProgressLog.class.getName();
+
+	/**
+	 * Seconds between two progress lines.
+	 */
+	static long INTERVAL = Long.getLong(PREFIX + ".interval", 10);
+
+	private final PrintStream console;
+	private final PrintStream detail;
+	private final int totalFiles;
+	private final long totalBytes;
+	private final long start = System.currentTimeMillis();
+	private ScheduledExecutorService timer;
+	private int files;
+	private int failed;
+	private long bytes;
+	private long bytesSent;
+
+	/**
+	 * @param detail
+	 *            where the compressed lines per file go
+	 */
+	ProgressLog(PrintStream console, OutputStream detail, int totalFiles,
+			long totalBytes) throws IOException {
+		this.console = console;
+		this.detail = new PrintStream(new BufferedOutputStream(
+				new GZIPOutputStream(detail)), false, "UTF-8");
+		this.totalFiles = totalFiles;
+		this.totalBytes = totalBytes;
+	}
+
+	/**
+	 * @return the log for the lines per file
+	 */
+	PrintStream getDetail() {
+		return detail;
+	}
+
+	void start() {
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HttpPublisher progress");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				console.println(progress());
+			}
+		}, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+	}
+
+	synchronized void done(List<UploadResult> results) {
+		for (final UploadResult result : results) {
+			files++;
+			bytes += result.getSize();
+			if (result.getMetrics() != null) {
+				bytesSent += result.getMetrics().getBytesSent();
+			}
+			if (!result.isSuccess()) {
+				failed++;
+				console.println("failed: " + result.getPath() + " -> " + result.getTarget());
+			}
+		}
+	}
+
+	synchronized String progress() {
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		double bytesPerMilli = bytes / (double) elapsed;
+		String eta = bytes == 0 || bytes >= totalBytes ? "-"
+				: formatDuration((long) ((totalBytes - bytes) / bytesPerMilli));
+		return String.format("published %d/%d files (%d failed), %.1f/%.1f MB,"
+				+ " %.1f files/s, %.2f MB/s sent, ETA %s",
+				files, totalFiles, failed, bytes / 1e6, totalBytes / 1e6,
+				files * 1000.0 / elapsed, bytesSent / 1000.0 / elapsed, eta);
+	}
+
+	private static String formatDuration(long millis) {
+		long seconds = millis / 1000;
+		if (seconds < 60) {
+			return seconds + "s";
+		}
+		if (seconds < 3600) {
+			return (seconds / 60) + "m " + (seconds % 60) + "s";
+		}
+		return (seconds / 3600) + "h " + (seconds / 60 % 60) + "m";
+	}
+
+	/**
+	 * Prints the final progress and finishes the compressed log.
+	 */
+	void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+		console.println(progress());
+		detail.close();
+	}
+}
@@ -0,0 +1,154 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.model.AbstractBuild;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Content digests of the files a build published with a profile, kept in
+ * the build directory so the next build can skip unchanged files.
+ *
+ * Every digest is recorded together with the servers of the profile at the
+ * time, so files are sent again once the servers change. All publish steps
+ * of a build with the same profile share one manifest.
+ */
+public final class PublishManifest {
+
+	/**
+	 * Separates the servers from the target in a key; hostnames are URLs and
+	 * contain no tabs.
+	 */
+	private static final char SEPARATOR = '\t';
+
+	private final String servers;
+	/**
+	 * Server set and target to digest, as loaded from the previous build.
+	 */
+	private final Map<String, String> previous = new HashMap<String, String>();
+	/**
+	 * Digests of the files published by this step.
+	 */
+	private final Map<String, String> published = new HashMap<String, String>();
+
+	private PublishManifest(String servers) {
+		this.servers = servers;
+	}
+
+	private static File fileOf(AbstractBuild<?, ?> build, String profileName) {
+		return new File(build.getRootDir(), "httppublisher-"
+				+ profileName.replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest");
+	}
+
+	/**
+	 * @return the servers of the profile, in a stable order
+	 */
+	private static String serversOf(HttpPublisherProfile profile) {
+		TreeSet<String> hostnames = new TreeSet<String>();
+		for (final Server server : profile.getServers()) {
+			hostnames.add(server.getHostname());
+		}
+		StringBuilder servers = new StringBuilder();
+		for (final String hostname : hostnames) {
+			servers.append(servers.length() == 0 ? "" : " ").append(hostname);
+		}
+		return servers.toString();
+	}
+
+	private String keyOf(String target) {
+		return servers + SEPARATOR + target;
+	}
+
+	/**
+	 * Loads the manifest of the most recent earlier build that published
+	 * with the profile, or an empty one.
+	 */
+	public static PublishManifest previous(AbstractBuild<?, ?> build,
+			HttpPublisherProfile profile) throws IOException {
+		PublishManifest manifest = new PublishManifest(serversOf(profile));
+		for (AbstractBuild<?, ?> b = build.getPreviousBuild(); b != null; b = b.getPreviousBuild()) {
+			File file = fileOf(b, profile.getName());
+			if (file.isFile()) {
+				manifest.previous.putAll(load(file));
+				break;
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * @return target name to hex encoded SHA-256 of the files already on the
+	 *         current servers of the profile, safe to send to a node
+	 */
+	public HashMap<String, String> getDigests() {
+		HashMap<String, String> digests = new HashMap<String, String>();
+		String prefix = keyOf("");
+		for (final Map.Entry<String, String> digest : previous.entrySet()) {
+			if (digest.getKey().startsWith(prefix)) {
+				digests.put(digest.getKey().substring(prefix.length()), digest.getValue());
+			}
+		}
+		return digests;
+	}
+
+	public void update(List<UploadResult> results) {
+		for (final UploadResult result : results) {
+			if (result.isSuccess() && result.getDigest() != null) {
+				published.put(keyOf(result.getTarget()), result.getDigest());
+			}
+		}
+	}
+
+	/**
+	 * Adds the digests to the manifest of the build. Files published by an
+	 * earlier step of the build win over the ones carried over from the
+	 * previous build.
+	 */
+	public void save(AbstractBuild<?, ?> build, String profileName)
+			throws IOException {
+		File file = fileOf(build, profileName);
+		// background uploads may save while the build publishes
+		synchronized (PublishManifest.class) {
+			Properties properties = new Properties();
+			if (file.isFile()) {
+				properties.putAll(load(file));
+			}
+			for (final Map.Entry<String, String> digest : previous.entrySet()) {
+				if (!properties.containsKey(digest.getKey())) {
+					properties.put(digest.getKey(), digest.getValue());
+				}
+			}
+			properties.putAll(published);
+			OutputStream out = new FileOutputStream(file);
+			try {
+				properties.store(out, "HTTP Publisher manifest");
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static Map<String, String> load(File file) throws IOException {
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		Map<String, String> digests = new HashMap<String, String>();
+		for (final String name : properties.stringPropertyNames()) {
+			digests.put(name, properties.getProperty(name));
+		}
+		return digests;
+	}
+}
@@ -0,0 +1,232 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.model.Action;
+import hudson.model.Api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Performance report of the files a build published, shown on the build page
+ * and available as JSON through <code>httppublisher/api/json</code>.
+ */
+@ExportedBean
+public class PublishReportAction implements Action {
+
+	public static final String QUEUED = "queued";
+	public static final String RUNNING = "running";
+	public static final String COMPLETED = "completed";
+	public static final String FAILED = "failed";
+
+	private final List<UploadResult> results = new ArrayList<UploadResult>();
+	/**
+	 * State of a background publish, null if the build published itself.
+	 */
+	private volatile String status;
+	/**
+	 * Milliseconds spent publishing, summed over all publish steps.
+	 */
+	private long elapsed;
+
+	public String getIconFileName() {
+		return "graph.gif";
+	}
+
+	public String getDisplayName() {
+		return "HTTP Publish Report";
+	}
+
+	public String getUrlName() {
+		return "httppublisher";
+	}
+
+	public Api getApi() {
+		return new Api(this);
+	}
+
+	public synchronized void add(List<UploadResult> results, long elapsed) {
+		this.results.addAll(results);
+		this.elapsed += elapsed;
+	}
+
+	@Exported
+	public String getStatus() {
+		return status;
+	}
+
+	public void setStatus(String status) {
+		this.status = status;
+	}
+
+	@Exported
+	public synchronized List<UploadResult> getResults() {
+		return new ArrayList<UploadResult>(results);
+	}
+
+	@Exported
+	public synchronized int getFileCount() {
+		return results.size();
+	}
+
+	@Exported
+	public synchronized int getFailedCount() {
+		int failed = 0;
+		for (final UploadResult result : results) {
+			if (!result.isSuccess()) {
+				failed++;
+			}
+		}
+		return failed;
+	}
+
+	@Exported
+	public synchronized int getSkippedCount() {
+		int skipped = 0;
+		for (final UploadResult result : results) {
+			if (result.isSkipped()) {
+				skipped++;
+			}
+		}
+		return skipped;
+	}
+
+	@Exported
+	public synchronized long getBytesSent() {
+		long bytes = 0;
+		for (final UploadResult result : results) {
+			if (result.getMetrics() != null) {
+				bytes += result.getMetrics().getBytesSent();
+			}
+		}
+		return bytes;
+	}
+
+	@Exported
+	public synchronized int getRetries() {
+		int retries = 0;
+		for (final UploadResult result : results) {
+			if (result.getMetrics() != null) {
+				retries += result.getMetrics().getRetries();
+			}
+		}
+		return retries;
+	}
+
+	/**
+	 * @return milliseconds uploads waited for the bandwidth limits, summed
+	 *         over all files
+	 */
+	@Exported
+	public synchronized long getThrottled() {
+		long throttled = 0;
+		for (final UploadResult result : results) {
+			if (result.getMetrics() != null) {
+				throttled += result.getMetrics().getThrottled();
+			}
+		}
+		return throttled;
+	}
+
+	/**
+	 * @return milliseconds uploads waited for files to be read ahead, summed
+	 *         over all files; high when the disk is the bottleneck
+	 */
+	@Exported
+	public synchronized long getDiskWait() {
+		long wait = 0;
+		for (final UploadResult result : results) {
+			if (result.getMetrics() != null) {
+				wait += result.getMetrics().getDiskWait();
+			}
+		}
+		return wait;
+	}
+
+	/**
+	 * @return milliseconds reading ahead waited for uploads, summed over all
+	 *         files; high when the network is the bottleneck
+	 */
+	@Exported
+	public synchronized long getNetworkWait() {
+		long wait = 0;
+		for (final UploadResult result : results) {
+			if (result.getMetrics() != null) {
+				wait += result.getMetrics().getNetworkWait();
+			}
+		}
+		return wait;
+	}
+
+	@Exported
+	public synchronized long getElapsed() {
+		return elapsed;
+	}
+
+	/**
+	 * @return megabytes (10^6 bytes) per second over the whole publish
+	 */
+	@Exported
+	public synchronized double getThroughput() {
+		return elapsed <= 0 ? 0 : getBytesSent() / 1000.0 / elapsed;
+	}
+
+	@Exported
+	public long getLatencyP50() {
+		return latencyPercentile(50);
+	}
+
+	@Exported
+	public long getLatencyP95() {
+		return latencyPercentile(95);
+	}
+
+	@Exported
+	public long getLatencyP99() {
+		return latencyPercentile(99);
+	}
+
+	/**
+	 * @return upload duration in milliseconds that the given percentage of
+	 *         the uploaded files did not exceed (nearest rank)
+	 */
+	public synchronized long latencyPercentile(int percent) {
+		long[] durations = new long[results.size()];
+		int n = 0;
+		for (final UploadResult result : results) {
+			if (result.isSuccess() && !result.isSkipped() && result.getMetrics() != null) {
+				durations[n++] = result.getMetrics().getDuration();
+			}
+		}
+		if (n == 0) {
+			return 0;
+		}
+		Arrays.sort(durations, 0, n);
+		int rank = (int) Math.ceil(percent / 100.0 * n);
+		return durations[Math.max(0, rank - 1)];
+	}
+
+	public String format(double value) {
+		return String.format("%.2f", value);
+	}
+
+	/**
+	 * @return the uploads that took longest, for the report page
+	 */
+	public List<UploadResult> getSlowest(int count) {
+		List<UploadResult> sorted = getResults();
+		Collections.sort(sorted, new Comparator<UploadResult>() {
+			public int compare(UploadResult a, UploadResult b) {
+				long da = a.getMetrics() == null ? 0 : a.getMetrics().getDuration();
+				long db = b.getMetrics() == null ? 0 : b.getMetrics().getDuration();
+				return da < db ? 1 : da > db ? -1 : 0;
+			}
+		});
+		return sorted.subList(0, Math.min(count, sorted.size()));
+	}
+}
@@ -0,0 +1,248 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import hudson.model.Hudson;
+import hudson.remoting.Callable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the controller knows each server of a profile has: target name to
+ * SHA-256, size and ETag, learned from successful uploads. It lets
+ * incremental publishes skip unchanged files without asking the servers.
+ * 
+ * The index is kept in the Jenkins root directory across builds and
+ * restarts and holds at most {@link #CAPACITY} records, evicting the least
+ * recently used. Records older than {@link #RECONCILE_AFTER} are checked
+ * against the server once before they are trusted again. Nodes look up all
+ * files of a publish in one call with {@link Lookup}.
+ */
+public final class RemoteIndex {
+
+	private static final String PREFIX = RemoteIndex.class.getName();
+
+	/**
+	 * Records kept per profile.
+	 */
+	static int CAPACITY = Integer.getInteger(PREFIX + ".capacity", 100000);
+	/**
+	 * Hours after which a record is verified with the server.
+	 */
+	static long RECONCILE_AFTER = TimeUnit.HOURS.toMillis(Long.getLong(PREFIX + ".reconcileAfter", 24));
+
+	private static final Map<String, RemoteIndex> indexes = new HashMap<String, RemoteIndex>();
+
+	private final File file;
+	private final LinkedHashMap<String, Record> records = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+			return size() > CAPACITY;
+		}
+	};
+	private boolean dirty;
+
+	private RemoteIndex(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the index of the profile, loaded on first use
+	 */
+	public static RemoteIndex of(String profileName) throws IOException {
+		synchronized (indexes) {
+			RemoteIndex index = indexes.get(profileName);
+			if (index == null) {
+				index = new RemoteIndex(new File(new File(Hudson.getInstance().getRootDir(),
+						"httppublisher-index"), profileName.replaceAll("[^A-Za-z0-9._-]", "_")
+						+ ".index"));
+				index.load();
+				indexes.put(profileName, index);
+			}
+			return index;
+		}
+	}
+
+	private static String keyOf(String server, String target) {
+		return server + '\t' + target;
+	}
+
+	/**
+	 * @return the records of the targets on any of the servers, by target
+	 */
+	public synchronized HashMap<String, ArrayList<Record>> lookup(
+			List<String> servers, List<String> targets) {
+		HashMap<String, ArrayList<Record>> found = new HashMap<String, ArrayList<Record>>();
+		for (final String target : targets) {
+			for (final String server : servers) {
+				Record record = records.get(keyOf(server, target));
+				if (record != null) {
+					ArrayList<Record> list = found.get(target);
+					if (list == null) {
+						list = new ArrayList<Record>(servers.size());
+						found.put(target, list);
+					}
+					list.add(record);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Records the files the servers accepted, and the records the nodes
+	 * verified with the servers.
+	 */
+	public synchronized void update(List<UploadResult> results) {
+		long now = System.currentTimeMillis();
+		for (final UploadResult result : results) {
+			UploadMetrics metrics = result.getMetrics();
+			if (!result.isSuccess() || result.isDuplicate() || result.getDigest() == null
+					|| metrics == null || metrics.getServer() == null) {
+				continue;
+			}
+			// replicated uploads list all servers that accepted the file
+			for (final String server : metrics.getServer().split(" ")) {
+				if (server.length() == 0) {
+					continue;
+				}
+				String key = keyOf(server, result.getTarget());
+				Record known = records.get(key);
+				String etag = known != null && result.isSkipped() ? known.etag : metrics.getEtag();
+				records.put(key, new Record(server, result.getDigest(), result.getSize(), etag, now));
+				dirty = true;
+			}
+		}
+	}
+
+	public synchronized void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			for (final Map.Entry<String, Record> entry : records.entrySet()) {
+				Record record = entry.getValue();
+				String target = entry.getKey().substring(record.server.length() + 1);
+				out.write(record.server + '\t' + target + '\t' + record.sha256 + '\t'
+						+ record.size + '\t' + (record.etag == null ? "-" : record.etag)
+						+ '\t' + record.verifiedAt + '\n');
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("could not replace " + file);
+			}
+		}
+		dirty = false;
+	}
+
+	private void load() throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length != 6) {
+					continue;
+				}
+				try {
+					records.put(keyOf(fields[0], fields[1]), new Record(fields[0], fields[2],
+							Long.parseLong(fields[3]), fields[4].equals("-") ? null : fields[4],
+							Long.parseLong(fields[5])));
+				} catch (NumberFormatException e) {
+					// skip damaged lines
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * A file on one server.
+	 */
+	public static final class Record implements Serializable {
+		private static final long serialVersionUID = 4571920561630826315L;
+
+		private final String server;
+		private final String sha256;
+		private final long size;
+		private final String etag;
+		private final long verifiedAt;
+
+		Record(String server, String sha256, long size, String etag, long verifiedAt) {
+			this.server = server;
+			this.sha256 = sha256;
+			this.size = size;
+			this.etag = etag;
+			this.verifiedAt = verifiedAt;
+		}
+
+		public String getServer() {
+			return server;
+		}
+
+		public String getEtag() {
+			return etag;
+		}
+
+		boolean matches(long size, FileDigest digest) {
+			return this.size == size && sha256.equals(digest.getSha256());
+		}
+
+		/**
+		 * @return whether the server should be asked before trusting the
+		 *         record
+		 */
+		boolean isStale() {
+			return System.currentTimeMillis() - verifiedAt > RECONCILE_AFTER;
+		}
+	}
+
+	/**
+	 * Looks up the records of many targets on the controller in one call
+	 * from a node.
+	 */
+	public static final class Lookup implements
+			Callable<HashMap<String, ArrayList<Record>>, IOException> {
+		private static final long serialVersionUID = -2281049630563781077L;
+
+		private final String profileName;
+		private final ArrayList<String> servers;
+		private final ArrayList<String> targets;
+
+		public Lookup(String profileName, List<String> servers, List<String> targets) {
+			this.profileName = profileName;
+			this.servers = new ArrayList<String>(servers);
+			this.targets = new ArrayList<String>(targets);
+		}
+
+		public HashMap<String, ArrayList<Record>> call() throws IOException {
+			return of(profileName).lookup(servers, targets);
+		}
+	}
+}
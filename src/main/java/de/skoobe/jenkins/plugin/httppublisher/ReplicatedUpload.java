@@ -0,0 +1,291 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Uploads a file to every server of a profile at the same time. The file is
+ * read once; every block read is queued to all servers that are still
+ * receiving. The replicas run on the threads the connection pool of the
+ * profile keeps for them.
+ */
+final class ReplicatedUpload {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	/**
+	 * Blocks queued per server, so a slow server holds back the others by at
+	 * most this many blocks.
+	 */
+	private static final int QUEUE_SIZE = 16;
+
+	private static final byte[] END = new byte[0];
+	private static final byte[] ABORT = new byte[0];
+
+	private final HttpPublisherProfile profile;
+	private final Transport transport;
+	private final ExecutorService executor;
+	private final String fileName;
+	private final File file;
+	private final RetryPolicy retryPolicy;
+	private final UploadMetrics metrics;
+
+	ReplicatedUpload(HttpPublisherProfile profile, Transport transport,
+			ExecutorService executor, String fileName, File file,
+			RetryPolicy retryPolicy, UploadMetrics metrics) {
+		this.profile = profile;
+		this.transport = transport;
+		this.executor = executor;
+		this.fileName = fileName;
+		this.file = file;
+		this.retryPolicy = retryPolicy;
+		this.metrics = metrics;
+	}
+
+	boolean run() throws IOException {
+		List<Server> servers = profile.getServers();
+		List<Replica> replicas = new ArrayList<Replica>();
+		for (final Server server : servers) {
+			replicas.add(new Replica(server.getHostname()));
+		}
+
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		try {
+			for (final Replica replica : replicas) {
+				replica.future = executor.submit(new Callable<Boolean>() {
+					public Boolean call() {
+						return replica.upload();
+					}
+				});
+				futures.add(replica.future);
+			}
+			feed(replicas);
+
+			int succeeded = 0;
+			StringBuilder accepted = new StringBuilder();
+			for (int i = 0; i < replicas.size(); i++) {
+				if (get(futures.get(i))) {
+					succeeded++;
+					accepted.append(accepted.length() == 0 ? "" : " ").append(replicas.get(i).hostname);
+					metrics.addBytesSent(file.length());
+				}
+			}
+			metrics.setServer(accepted.toString());
+			int required = profile.getRequiredReplicas();
+			StringBuilder summary = new StringBuilder();
+			for (final Replica replica : replicas) {
+				summary.append(summary.length() == 0 ? "" : ", ").append(replica);
+			}
+			profile.log("replicated to " + succeeded + "/" + replicas.size()
+					+ " servers (" + required + " required): " + summary);
+			return succeeded >= required;
+		} finally {
+			// stops the replicas still running if reading failed
+			for (final Future<Boolean> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static boolean get(Future<Boolean> future) throws IOException {
+		try {
+			return future.get();
+		} catch (CancellationException e) {
+			// given up on while the file was read
+			return false;
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the file once and hands every block to all live replicas.
+	 */
+	private void feed(List<Replica> replicas) throws IOException {
+		InputStream in = new FileInputStream(file);
+		boolean complete = false;
+		try {
+			int len;
+			do {
+				byte[] block = new byte[BLOCK_SIZE];
+				len = in.read(block);
+				if (len > 0) {
+					if (len < block.length) {
+						byte[] shorter = new byte[len];
+						System.arraycopy(block, 0, shorter, 0, len);
+						block = shorter;
+					}
+					for (final Replica replica : replicas) {
+						replica.offer(block);
+					}
+				}
+			} while (len != -1);
+			complete = true;
+		} finally {
+			in.close();
+			for (final Replica replica : replicas) {
+				replica.offer(complete ? END : ABORT);
+			}
+		}
+	}
+
+	private final class Replica {
+		private final String hostname;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		private volatile boolean failed;
+		private volatile Future<Boolean> future;
+		private String status = "not started";
+		private long millis;
+
+		Replica(String hostname) {
+			this.hostname = hostname;
+		}
+
+		void offer(byte[] block) throws InterruptedIOException {
+			try {
+				while (!failed && !queue.offer(block, 100, TimeUnit.MILLISECONDS)) {
+					// wait for the server to catch up, unless it failed, is
+					// no longer taking blocks or ran out of time
+					if (future.isDone() || retryPolicy.isExpired()) {
+						failed = true;
+						future.cancel(true);
+					}
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+
+		boolean upload() {
+			ServerHealth health = ServerHealth.of(hostname);
+			long start = System.currentTimeMillis();
+			health.begin();
+			boolean success = false;
+			// the entity can be written only once, so there are no retries
+			try {
+				HttpResponse response = transport.put(hostname + fileName,
+						ThrottledEntity.of(profile, new QueueEntity(), metrics), retryPolicy);
+				status = response.getStatusLine().toString();
+				success = response.getStatusLine().getStatusCode() / 100 == 2;
+			} catch (IOException e) {
+				status = e.toString();
+			} finally {
+				failed = !success;
+				queue.clear();
+				millis = System.currentTimeMillis() - start;
+				if (success) {
+					health.success(millis);
+				} else {
+					health.failure(millis, profile.getCoolDownMillis());
+				}
+			}
+			return success;
+		}
+
+		@Override
+		public String toString() {
+			return hostname + " " + status + " in " + millis + " ms";
+		}
+
+		/**
+		 * Sends the blocks queued for this replica; can be written or read
+		 * only once.
+		 */
+		private final class QueueEntity extends AbstractHttpEntity {
+			QueueEntity() {
+				setContentType(ContentType.DEFAULT_BINARY.toString());
+			}
+
+			public boolean isRepeatable() {
+				return false;
+			}
+
+			public long getContentLength() {
+				return file.length();
+			}
+
+			public InputStream getContent() {
+				return new QueueStream();
+			}
+
+			public void writeTo(OutputStream out) throws IOException {
+				InputStream in = getContent();
+				byte[] buffer = new byte[BLOCK_SIZE];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+				out.flush();
+			}
+
+			public boolean isStreaming() {
+				return true;
+			}
+		}
+
+		/**
+		 * Reads the blocks queued for this replica as they arrive.
+		 */
+		private final class QueueStream extends InputStream {
+			private byte[] block = new byte[0];
+			private int position;
+			private boolean end;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				while (position == block.length) {
+					if (end) {
+						return -1;
+					}
+					byte[] next;
+					try {
+						next = queue.take();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException(e.getMessage());
+					}
+					if (next == ABORT) {
+						throw new IOException("reading " + file + " failed");
+					}
+					if (next == END) {
+						end = true;
+						return -1;
+					}
+					block = next;
+					position = 0;
+				}
+				int count = Math.min(len, block.length - position);
+				System.arraycopy(block, position, b, off, count);
+				position += count;
+				return count;
+			}
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * Decides whether and when a failed request is sent again, and enforces the
+ * overall deadline of uploading one file.
+ *
+ * Only idempotent requests with a repeatable entity are retried, on I/O
+ * errors and on statuses that signal a transient problem. The delay grows
+ * exponentially with every attempt and is randomized ("equal jitter"), so
+ * uploads failing together do not retry together.
+ */
+final class RetryPolicy {
+
+	/**
+	 * Status passed for requests that failed with an I/O error.
+	 */
+	static final int IO_ERROR = -1;
+
+	private static final long MAX_BACKOFF = 60 * 1000;
+
+	private static final Random random = new Random();
+
+	private static final ScheduledExecutorService watchdog = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HttpPublisher deadline watchdog");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private final int maxRetries;
+	private final long backoff;
+	private final long deadline;
+
+	private RetryPolicy(int maxRetries, long backoff, long deadline) {
+		this.maxRetries = maxRetries;
+		this.backoff = backoff;
+		this.deadline = deadline;
+	}
+
+	/**
+	 * Starts the clock for the deadline of one file.
+	 */
+	static RetryPolicy start(HttpPublisherProfile profile) {
+		long deadline = profile.getDeadline() > 0
+				? System.currentTimeMillis() + profile.getDeadline() * 1000L
+				: Long.MAX_VALUE;
+		return new RetryPolicy(profile.getMaxRetries(), profile.getRetryBackoff(), deadline);
+	}
+
+	int getMaxRetries() {
+		return maxRetries;
+	}
+
+	static boolean isRetryable(int status) {
+		switch (status) {
+		case IO_ERROR:
+		case HttpStatus.SC_REQUEST_TIMEOUT:
+		case 429: // Too Many Requests
+		case HttpStatus.SC_INTERNAL_SERVER_ERROR:
+		case HttpStatus.SC_BAD_GATEWAY:
+		case HttpStatus.SC_SERVICE_UNAVAILABLE:
+		case HttpStatus.SC_GATEWAY_TIMEOUT:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static boolean isIdempotent(String method) {
+		return "PUT".equals(method) || "HEAD".equals(method)
+				|| "GET".equals(method) || "DELETE".equals(method);
+	}
+
+	/**
+	 * @param attempt
+	 *            number of retries done so far
+	 */
+	boolean shouldRetry(int attempt, int status, String method, HttpEntity entity) {
+		return attempt < maxRetries && isRetryable(status) && isIdempotent(method)
+				&& (entity == null || entity.isRepeatable()) && !isExpired();
+	}
+
+	/**
+	 * @return milliseconds to wait before the given retry
+	 */
+	long backoff(int attempt) {
+		long ceiling = Math.min(MAX_BACKOFF, backoff << Math.min(attempt, 20));
+		long half = ceiling / 2;
+		synchronized (random) {
+			return half + (long) (random.nextDouble() * (ceiling - half));
+		}
+	}
+
+	/**
+	 * Waits before a retry.
+	 * 
+	 * @return false if the wait would end after the deadline
+	 */
+	boolean sleep(long millis) throws InterruptedException {
+		if (System.currentTimeMillis() + millis >= deadline) {
+			return false;
+		}
+		Thread.sleep(millis);
+		return true;
+	}
+
+	boolean isExpired() {
+		return System.currentTimeMillis() >= deadline;
+	}
+
+	/**
+	 * @return milliseconds left until the deadline, or
+	 *         {@link Long#MAX_VALUE} if there is none
+	 */
+	long remaining() {
+		if (deadline == Long.MAX_VALUE) {
+			return Long.MAX_VALUE;
+		}
+		return Math.max(0, deadline - System.currentTimeMillis());
+	}
+
+	/**
+	 * Aborts the request if it is still running at the deadline.
+	 * 
+	 * @return handle to cancel the abort once the request completed, or null
+	 */
+	ScheduledFuture<?> abortAtDeadline(final HttpUriRequest request) {
+		if (deadline == Long.MAX_VALUE) {
+			return null;
+		}
+		return watchdog.schedule(new Runnable() {
+			public void run() {
+				request.abort();
+			}
+		}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the connection if the request is still running at the deadline.
+	 * 
+	 * @return handle to cancel the abort once the request completed, or null
+	 */
+	ScheduledFuture<?> abortAtDeadline(final Closeable connection) {
+		if (deadline == Long.MAX_VALUE) {
+			return null;
+		}
+		return watchdog.schedule(new Runnable() {
+			public void run() {
+				try {
+					connection.close();
+				} catch (IOException e) {
+					// the request fails either way
+				}
+			}
+		}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+	}
+
+	static void cancel(ScheduledFuture<?> abort) {
+		if (abort != null) {
+			abort.cancel(false);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency, error rate and load of a server as seen from this JVM.
+ *
+ * Averages are exponentially weighted, so recent requests count most. After
+ * {@link #FAILURE_THRESHOLD} failures in a row the server is put into a
+ * cool-down during which other servers are preferred.
+ */
+public final class ServerHealth {
+
+	/**
+	 * Weight of the newest sample in the moving averages.
+	 */
+	private static final double ALPHA = 0.3;
+
+	static final int FAILURE_THRESHOLD = 3;
+
+	private static final ConcurrentMap<String, ServerHealth> servers = new ConcurrentHashMap<String, ServerHealth>();
+
+	private final String hostname;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private double latency;
+	private double errorRate;
+	private int samples;
+	private int consecutiveFailures;
+	private long coolDownUntil;
+
+	private ServerHealth(String hostname) {
+		this.hostname = hostname;
+	}
+
+	public static ServerHealth of(String hostname) {
+		ServerHealth health = servers.get(hostname);
+		if (health == null) {
+			ServerHealth created = new ServerHealth(hostname);
+			health = servers.putIfAbsent(hostname, created);
+			if (health == null) {
+				health = created;
+			}
+		}
+		return health;
+	}
+
+	public String getHostname() {
+		return hostname;
+	}
+
+	public void begin() {
+		inFlight.incrementAndGet();
+	}
+
+	public synchronized void success(long millis) {
+		inFlight.decrementAndGet();
+		sample(millis, 0);
+		consecutiveFailures = 0;
+		coolDownUntil = 0;
+	}
+
+	/**
+	 * @param coolDown
+	 *            milliseconds to avoid the server once it failed too often
+	 */
+	public synchronized void failure(long millis, long coolDown) {
+		inFlight.decrementAndGet();
+		sample(millis, 1);
+		if (++consecutiveFailures >= FAILURE_THRESHOLD) {
+			coolDownUntil = System.currentTimeMillis() + coolDown;
+		}
+	}
+
+	private void sample(long millis, double error) {
+		if (samples++ == 0) {
+			latency = millis;
+			errorRate = error;
+		} else {
+			latency = ALPHA * millis + (1 - ALPHA) * latency;
+			errorRate = ALPHA * error + (1 - ALPHA) * errorRate;
+		}
+	}
+
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	public synchronized double getLatency() {
+		return latency;
+	}
+
+	public synchronized double getErrorRate() {
+		return errorRate;
+	}
+
+	public synchronized boolean isCoolingDown() {
+		return coolDownUntil > System.currentTimeMillis();
+	}
+
+	/**
+	 * Lower is better. Servers without samples score 0, so they get tried.
+	 */
+	synchronized double score() {
+		// an error costs as much as ten average requests
+		return latency * (1 + 10 * errorRate);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s (latency %.0f ms, errors %.0f%%, in flight %d%s)",
+				hostname, latency, errorRate * 100, inFlight.get(),
+				isCoolingDown() ? ", cooling down" : "");
+	}
+}
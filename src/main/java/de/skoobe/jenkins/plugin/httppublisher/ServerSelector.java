@@ -0,0 +1,92 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.ServerSelection;
+
+/**
+ * Orders the servers of a profile by the profile's {@link ServerSelection}.
+ * Except for {@link ServerSelection#ORDERED}, servers in cool-down come last;
+ * they are only tried when all the others failed.
+ */
+final class ServerSelector {
+
+	/**
+	 * Added to the sort key of servers in cool-down to move them last.
+	 */
+	private static final double COOLING_DOWN = 1e12;
+
+	private static final ConcurrentMap<String, AtomicInteger> rounds = new ConcurrentHashMap<String, AtomicInteger>();
+
+	private ServerSelector() {
+	}
+
+	static List<Server> order(HttpPublisherProfile profile) {
+		List<Server> servers = profile.getServers();
+		ServerSelection selection = profile.getServerSelection();
+		if (servers.size() <= 1) {
+			return servers;
+		}
+
+		List<Server> ordered = new ArrayList<Server>(servers);
+		if (selection == ServerSelection.ORDERED) {
+			return ordered;
+		}
+		if (selection == ServerSelection.ROUND_ROBIN) {
+			Collections.rotate(ordered, -(next(profile.getName()) % ordered.size()));
+		}
+
+		// take a snapshot, the statistics change while we sort
+		final Map<Server, Double> keys = new HashMap<Server, Double>();
+		for (final Server server : ordered) {
+			ServerHealth health = health(server);
+			double key;
+			switch (selection) {
+			case HEALTHIEST:
+				key = health.score();
+				break;
+			case LEAST_IN_FLIGHT:
+				key = health.getInFlight();
+				break;
+			default:
+				key = 0;
+				break;
+			}
+			if (health.isCoolingDown()) {
+				key += COOLING_DOWN;
+			}
+			keys.put(server, key);
+		}
+		// stable, so equal servers keep their order
+		Collections.sort(ordered, new Comparator<Server>() {
+			public int compare(Server a, Server b) {
+				return Double.compare(keys.get(a), keys.get(b));
+			}
+		});
+		return ordered;
+	}
+
+	private static ServerHealth health(Server server) {
+		return ServerHealth.of(server.getHostname());
+	}
+
+	private static int next(String profileName) {
+		AtomicInteger round = rounds.get(profileName);
+		if (round == null) {
+			AtomicInteger created = new AtomicInteger();
+			round = rounds.putIfAbsent(profileName, created);
+			if (round == null) {
+				round = created;
+			}
+		}
+		return round.getAndIncrement() & Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,165 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineParser;
+
+/**
+ * HTTP/1.1 over a {@link SocketChannel} of its own, so that file content is
+ * handed to the kernel with {@link ChannelWritable.Transfer#writeTo} instead
+ * of being copied through the heap. The length announced is the one of the
+ * content opened for sending. Only plain <code>http</code> uploads of entities
+ * that support it take this path, everything else, including HEAD requests,
+ * goes to the fallback.
+ * 
+ * Each upload opens its own connection and asks the server to close it, as
+ * it is meant for large files where connecting is negligible.
+ */
+final class SocketChannelTransport extends Transport {
+
+	private static final String CRLF = "\r\n";
+
+	private final Transport fallback;
+	private final int connectTimeout;
+	private final int readTimeout;
+
+	SocketChannelTransport(Transport fallback, HttpPublisherProfile profile) {
+		this.fallback = fallback;
+		this.connectTimeout = (int) TimeUnit.SECONDS.toMillis(profile.getConnectTimeout());
+		this.readTimeout = (int) TimeUnit.SECONDS.toMillis(profile.getReadTimeout());
+	}
+
+	@Override
+	HttpResponse put(String url, Header[] headers, HttpEntity entity,
+			RetryPolicy retryPolicy) throws IOException {
+		URI uri = URI.create(url);
+		if (!"http".equalsIgnoreCase(uri.getScheme())
+				|| !(entity instanceof ChannelWritable)
+				|| !((ChannelWritable) entity).isChannelWritable()
+				|| entity.getContentLength() < 0) {
+			return fallback.put(url, headers, entity, retryPolicy);
+		}
+
+		int port = uri.getPort() < 0 ? 80 : uri.getPort();
+		ChannelWritable.Transfer transfer = ((ChannelWritable) entity).open();
+		try {
+			SocketChannel channel = SocketChannel.open();
+			ScheduledFuture<?> abort = retryPolicy.abortAtDeadline(channel);
+			try {
+				channel.socket().setSoTimeout(readTimeout);
+				channel.socket().connect(new InetSocketAddress(uri.getHost(), port), connectTimeout);
+				write(channel, head(uri, headers, entity, transfer.getLength()));
+				transfer.writeTo(channel);
+				return readResponse(channel.socket().getInputStream());
+			} finally {
+				RetryPolicy.cancel(abort);
+				channel.close();
+			}
+		} finally {
+			transfer.close();
+		}
+	}
+
+	@Override
+	HttpResponse head(String url) throws IOException {
+		return fallback.head(url);
+	}
+
+	private static String head(URI uri, Header[] headers, HttpEntity entity,
+			long length) {
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		StringBuilder head = new StringBuilder();
+		head.append("PUT ").append(path).append(" HTTP/1.1").append(CRLF);
+		head.append("Host: ").append(uri.getHost());
+		if (uri.getPort() >= 0) {
+			head.append(':').append(uri.getPort());
+		}
+		head.append(CRLF);
+		head.append("Content-Length: ").append(length).append(CRLF);
+		for (final Header header : new Header[] { entity.getContentType(),
+				entity.getContentEncoding() }) {
+			if (header != null) {
+				head.append(header.getName()).append(": ").append(header.getValue()).append(CRLF);
+			}
+		}
+		for (final Header header : headers) {
+			head.append(header.getName()).append(": ").append(header.getValue()).append(CRLF);
+		}
+		head.append("Connection: close").append(CRLF).append(CRLF);
+		return head.toString();
+	}
+
+	private static void write(SocketChannel channel, String text) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(text.getBytes("US-ASCII"));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Reads the status line and headers; the content of the response is
+	 * dropped with the connection.
+	 */
+	private static HttpResponse readResponse(InputStream stream) throws IOException {
+		InputStream in = new BufferedInputStream(stream);
+		HttpResponse response;
+		StatusLine status;
+		do {
+			String line = readLine(in);
+			if (line == null) {
+				throw new IOException("connection closed without a response");
+			}
+			try {
+				status = BasicLineParser.parseStatusLine(line, null);
+			} catch (ParseException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+			response = new BasicHttpResponse(status);
+			// interim 1xx responses are skipped altogether
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				try {
+					response.addHeader(BasicLineParser.parseHeader(line, null));
+				} catch (ParseException e) {
+					// ignore malformed headers
+				}
+			}
+		} while (status.getStatusCode() / 100 == 1);
+		return response;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int end = line.length();
+				if (end > 0 && line.charAt(end - 1) == '\r') {
+					line.setLength(end - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+}
@@ -0,0 +1,82 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Writes the wrapped entity no faster than its {@link TokenBucket}s allow
+ * and records the time spent waiting for them.
+ */
+final class ThrottledEntity extends HttpEntityWrapper {
+
+	private final List<TokenBucket> buckets;
+	private final UploadMetrics metrics;
+
+	private ThrottledEntity(HttpEntity entity, List<TokenBucket> buckets,
+			UploadMetrics metrics) {
+		super(entity);
+		this.buckets = buckets;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the entity limited to the bandwidth of the profile, or the
+	 *         entity itself if there is no limit
+	 */
+	static HttpEntity of(HttpPublisherProfile profile, HttpEntity entity,
+			UploadMetrics metrics) {
+		List<TokenBucket> buckets = TokenBucket.of(profile);
+		return buckets.isEmpty() ? entity : new ThrottledEntity(entity, buckets, metrics);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		ThrottledOutputStream throttled = new ThrottledOutputStream(out);
+		try {
+			super.writeTo(throttled);
+		} finally {
+			metrics.addThrottled(throttled.waited);
+		}
+	}
+
+	private final class ThrottledOutputStream extends FilterOutputStream {
+		private long waited;
+
+		ThrottledOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			take(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, TokenBucket.QUANTUM);
+				take(n);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void take(int bytes) throws InterruptedIOException {
+			try {
+				for (final TokenBucket bucket : buckets) {
+					waited += bucket.take(bytes);
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(e.getMessage());
+			}
+		}
+	}
+}
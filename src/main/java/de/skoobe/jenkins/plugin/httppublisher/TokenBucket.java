@@ -0,0 +1,117 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the bytes per second written by all uploads sharing the bucket.
+ * Writers take tokens in small quanta through a fair lock, so concurrent
+ * uploads, and the builds they belong to, get equal shares of the bandwidth
+ * in the order they asked for it.
+ * 
+ * There is one bucket per profile and one for all uploads of the JVM, both
+ * enforced on the node doing the uploads.
+ */
+final class TokenBucket {
+
+	private static final String PREFIX = TokenBucket.class.getName();
+
+	/**
+	 * Kilobytes per second all uploads of this JVM may send together, 0 for
+	 * no limit.
+	 */
+	static long GLOBAL_LIMIT = Long.getLong(PREFIX + ".globalLimit", 0);
+
+	/**
+	 * Bytes taken at a time, small enough to interleave concurrent uploads.
+	 */
+	static final int QUANTUM = 16 * 1024;
+
+	private static final Map<String, TokenBucket> profiles = new HashMap<String, TokenBucket>();
+	private static TokenBucket global;
+
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private long rate;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	private TokenBucket(long rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * @return the buckets limiting uploads of the profile, none if it has no
+	 *         limits
+	 */
+	static List<TokenBucket> of(HttpPublisherProfile profile) {
+		List<TokenBucket> buckets = new ArrayList<TokenBucket>(2);
+		long rate = profile.getMaxBandwidth() * 1024L;
+		synchronized (profiles) {
+			if (rate > 0) {
+				TokenBucket bucket = profiles.get(profile.getName());
+				if (bucket == null) {
+					bucket = new TokenBucket(rate);
+					profiles.put(profile.getName(), bucket);
+				} else {
+					bucket.setRate(rate);
+				}
+				buckets.add(bucket);
+			} else {
+				profiles.remove(profile.getName());
+			}
+			if (GLOBAL_LIMIT > 0) {
+				if (global == null) {
+					global = new TokenBucket(GLOBAL_LIMIT * 1024);
+				} else {
+					global.setRate(GLOBAL_LIMIT * 1024);
+				}
+				buckets.add(global);
+			}
+		}
+		return buckets;
+	}
+
+	private void setRate(long rate) {
+		lock.lock();
+		try {
+			this.rate = rate;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until <code>bytes</code> may be sent.
+	 * 
+	 * @return milliseconds waited
+	 */
+	long take(int bytes) throws InterruptedException {
+		long start = System.nanoTime();
+		lock.lockInterruptibly();
+		try {
+			refill();
+			if (tokens < bytes) {
+				// waiting with the lock held keeps later writers queued
+				long wait = (long) ((bytes - tokens) * TimeUnit.SECONDS.toNanos(1) / rate);
+				TimeUnit.NANOSECONDS.sleep(wait);
+				refill();
+			}
+			tokens -= bytes;
+		} finally {
+			lock.unlock();
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		// allow bursts of at most one second
+		tokens = Math.min(rate, tokens + (now - lastRefill) * (double) rate
+				/ TimeUnit.SECONDS.toNanos(1));
+		lastRefill = now;
+	}
+}
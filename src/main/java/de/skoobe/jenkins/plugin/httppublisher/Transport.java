@@ -0,0 +1,64 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Protocol;
+
+/**
+ * Sends the requests of a profile to its servers: whole files, chunks,
+ * replicas and batches are PUT, and files are looked up with HEAD, all with
+ * the protocol the profile selects.
+ */
+abstract class Transport {
+
+	private static final Header[] NO_HEADERS = new Header[0];
+
+	/**
+	 * Uploads the entity.
+	 *
+	 * @param headers
+	 *            request headers besides the ones of the entity
+	 * @return the response, with its content read already so it stays
+	 *         readable after the connection is given back
+	 * @throws IOException
+	 *             if no response was received
+	 */
+	abstract HttpResponse put(String url, Header[] headers, HttpEntity entity,
+			RetryPolicy retryPolicy) throws IOException;
+
+	HttpResponse put(String url, HttpEntity entity, RetryPolicy retryPolicy)
+			throws IOException {
+		return put(url, NO_HEADERS, entity, retryPolicy);
+	}
+
+	/**
+	 * Asks for the headers of a published file.
+	 *
+	 * @return the response, without content
+	 * @throws IOException
+	 *             if no response was received
+	 */
+	abstract HttpResponse head(String url) throws IOException;
+
+	/**
+	 * @return the transport selected by the profile, or the HttpClient
+	 *         transport if the selected one is not available on this JVM
+	 */
+	static Transport of(HttpPublisherProfile profile) {
+		if (profile.getProtocol() == Protocol.HTTP_2) {
+			Transport transport = Http2Transport.of(profile);
+			if (transport != null) {
+				return transport;
+			}
+		}
+		Transport transport = new HttpClientTransport(ConnectionPools.client(profile));
+		if (profile.isZeroCopy()) {
+			return new SocketChannelTransport(transport, profile);
+		}
+		return transport;
+	}
+}
@@ -0,0 +1,175 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes sure a file is uploaded to the same target only once per build, even
+ * if several entries match it or the configurations of a matrix build all
+ * publish it. A request for an upload that is in progress waits for it and
+ * shares its result.
+ * 
+ * Uploads are told apart by the canonical path, size and modification time
+ * of the file and by the target name, so nothing needs to be read to find
+ * a duplicate. They are remembered per scope, the root build, in the JVM
+ * doing the uploads, for as long as a build of the scope publishes and a
+ * while after, so that configurations publishing one after the other
+ * benefit too.
+ */
+final class UploadDedup {
+
+	/**
+	 * How long a scope is kept after its last publish finished.
+	 */
+	private static final long LINGER = TimeUnit.MINUTES.toMillis(30);
+
+	private static final Map<String, UploadDedup> scopes = new HashMap<String, UploadDedup>();
+
+	private final ConcurrentMap<String, FutureTask<UploadResult>> uploads = new ConcurrentHashMap<String, FutureTask<UploadResult>>();
+	private int references;
+	private long releasedAt;
+
+	private UploadDedup() {
+	}
+
+	static UploadDedup acquire(String scope) {
+		synchronized (scopes) {
+			long now = System.currentTimeMillis();
+			for (Iterator<UploadDedup> it = scopes.values().iterator(); it.hasNext();) {
+				UploadDedup dedup = it.next();
+				if (dedup.references == 0 && now - dedup.releasedAt > LINGER) {
+					it.remove();
+				}
+			}
+			UploadDedup dedup = scopes.get(scope);
+			if (dedup == null) {
+				dedup = new UploadDedup();
+				scopes.put(scope, dedup);
+			}
+			dedup.references++;
+			return dedup;
+		}
+	}
+
+	void release() {
+		synchronized (scopes) {
+			if (--references == 0) {
+				releasedAt = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * A file changed since it was uploaded is uploaded again.
+	 */
+	static String keyOf(File file, String target) throws IOException {
+		return file.getCanonicalPath() + '\n' + file.length() + '\n'
+				+ file.lastModified() + '\n' + target;
+	}
+
+	/**
+	 * Runs the upload unless the same one ran or is running already.
+	 * 
+	 * @return the result of the upload, or a duplicate of the result of the
+	 *         earlier one for <code>path</code>
+	 */
+	UploadResult upload(String key, String path, Callable<UploadResult> upload)
+			throws IOException, InterruptedException {
+		FutureTask<UploadResult> task = new FutureTask<UploadResult>(upload);
+		FutureTask<UploadResult> running = uploads.putIfAbsent(key, task);
+		if (running == null) {
+			boolean success = false;
+			try {
+				task.run();
+				UploadResult result = get(task);
+				success = result.isSuccess();
+				return result;
+			} finally {
+				if (!success) {
+					// let a later request try again, also after an exception
+					uploads.remove(key, task);
+				}
+			}
+		}
+		return get(running).duplicateAt(path);
+	}
+
+	/**
+	 * Claims an upload done outside of {@link #upload}, such as one of the
+	 * files of a batched request. The caller must {@link #complete} it.
+	 * 
+	 * @return null if the upload is claimed, or the upload that ran or is
+	 *         running already, for {@link #duplicate}
+	 */
+	Future<UploadResult> claim(String key) {
+		return uploads.putIfAbsent(key, new Claim());
+	}
+
+	void complete(String key, UploadResult result) {
+		FutureTask<UploadResult> task = uploads.get(key);
+		if (task instanceof Claim) {
+			((Claim) task).complete(result);
+			if (!result.isSuccess()) {
+				uploads.remove(key, task);
+			}
+		}
+	}
+
+	/**
+	 * @return a duplicate of the result of a claimed upload for
+	 *         <code>path</code>, once it completed
+	 */
+	static UploadResult duplicate(Future<UploadResult> upload, String path)
+			throws IOException, InterruptedException {
+		return get(upload).duplicateAt(path);
+	}
+
+	private static UploadResult get(Future<UploadResult> task)
+			throws IOException, InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(String.valueOf(cause), cause);
+		}
+	}
+
+	/**
+	 * An upload whose result is set by the one who claimed it.
+	 */
+	private static final class Claim extends FutureTask<UploadResult> {
+		Claim() {
+			super(new Callable<UploadResult>() {
+				public UploadResult call() {
+					throw new IllegalStateException("claimed uploads do not run");
+				}
+			});
+		}
+
+		void complete(UploadResult result) {
+			set(result);
+		}
+	}
+}
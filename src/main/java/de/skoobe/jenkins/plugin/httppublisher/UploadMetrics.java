@@ -0,0 +1,145 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Performance figures of uploading one file, filled in while it is uploaded.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class UploadMetrics implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -1546232436937713006L;
+
+	private String server;
+	private long bytesSent;
+	private long duration;
+	private int retries;
+	private long timeToFirstByte = -1;
+	private long throttled;
+	private long diskWait;
+	private long networkWait;
+	private String etag;
+
+	/**
+	 * @return server that accepted the file, or null
+	 */
+	@Exported
+	public synchronized String getServer() {
+		return server;
+	}
+
+	synchronized void setServer(String server) {
+		this.server = server;
+	}
+
+	/**
+	 * @return bytes sent by successful requests
+	 */
+	@Exported
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	synchronized void addBytesSent(long bytes) {
+		bytesSent += bytes;
+	}
+
+	/**
+	 * @return milliseconds spent on the file, including retries
+	 */
+	@Exported
+	public synchronized long getDuration() {
+		return duration;
+	}
+
+	synchronized void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	@Exported
+	public synchronized int getRetries() {
+		return retries;
+	}
+
+	synchronized void addRetry() {
+		retries++;
+	}
+
+	/**
+	 * @return milliseconds between sending the last byte and receiving the
+	 *         response, or -1 if unknown
+	 */
+	@Exported
+	public synchronized long getTimeToFirstByte() {
+		return timeToFirstByte;
+	}
+
+	synchronized void setTimeToFirstByte(long timeToFirstByte) {
+		this.timeToFirstByte = timeToFirstByte;
+	}
+
+	/**
+	 * @return milliseconds spent waiting for the bandwidth limits
+	 */
+	@Exported
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+	synchronized void addThrottled(long millis) {
+		throttled += millis;
+	}
+
+	/**
+	 * @return milliseconds sending waited for the file to be read ahead
+	 */
+	@Exported
+	public synchronized long getDiskWait() {
+		return diskWait;
+	}
+
+	/**
+	 * @return milliseconds reading the file ahead waited for other files to
+	 *         be sent
+	 */
+	@Exported
+	public synchronized long getNetworkWait() {
+		return networkWait;
+	}
+
+	synchronized void addPrefetchWaits(long diskWait, long networkWait) {
+		this.diskWait += diskWait;
+		this.networkWait += networkWait;
+	}
+
+	/**
+	 * @return ETag the server answered the upload with, or null
+	 */
+	@Exported
+	public synchronized String getEtag() {
+		return etag;
+	}
+
+	synchronized void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+	/**
+	 * @return megabytes (10^6 bytes) per second
+	 */
+	@Exported
+	public synchronized double getThroughput() {
+		return duration <= 0 ? 0 : bytesSent / 1000.0 / duration;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%d bytes in %d ms (%.2f MB/s) via %s, %d retries, %d ms to first byte",
+				bytesSent, duration, getThroughput(), server, retries, timeToFirstByte);
+	}
+}
@@ -0,0 +1,49 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Results of uploading all files matched by one {@link Entry}, in the order
+ * the files were matched.
+ */
+public final class UploadReport implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = -7003367154911420166L;
+
+	private final List<UploadResult> results;
+	/**
+	 * Why the source mask did not match anything, if known.
+	 */
+	private final String error;
+
+	public UploadReport(List<UploadResult> results, String error) {
+		this.results = new ArrayList<UploadResult>(results);
+		this.error = error;
+	}
+
+	public List<UploadResult> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	public String getError() {
+		return error;
+	}
+
+	public boolean isEmpty() {
+		return results.isEmpty();
+	}
+
+	public boolean isComplete() {
+		for (final UploadResult result : results) {
+			if (!result.isSuccess()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,127 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Outcome of uploading a single file, reported back from the node that did
+ * the upload.
+ */
+@ExportedBean(defaultVisibility = 2)
+public final class UploadResult implements Serializable {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 2984605843120694613L;
+
+	/**
+	 * File name relative to the workspace root.
+	 */
+	private final String path;
+	/**
+	 * Name of the file on the server.
+	 */
+	private final String target;
+	private final boolean success;
+	/**
+	 * Whether the upload was left out because the server already has the
+	 * same content.
+	 */
+	private final boolean skipped;
+	/**
+	 * Whether another request uploaded the same file to the same target
+	 * during this build.
+	 */
+	private final boolean duplicate;
+	private final long size;
+	/**
+	 * Hex encoded SHA-256 of the content, or null if it was not computed.
+	 */
+	private final String digest;
+	private final UploadMetrics metrics;
+
+	public UploadResult(String path, String target, boolean success,
+			boolean skipped, long size, String digest, UploadMetrics metrics) {
+		this(path, target, success, skipped, false, size, digest, metrics);
+	}
+
+	private UploadResult(String path, String target, boolean success,
+			boolean skipped, boolean duplicate, long size, String digest,
+			UploadMetrics metrics) {
+		this.path = path;
+		this.target = target;
+		this.success = success;
+		this.skipped = skipped;
+		this.duplicate = duplicate;
+		this.size = size;
+		this.digest = digest;
+		this.metrics = metrics;
+	}
+
+	@Exported
+	public String getPath() {
+		return path;
+	}
+
+	@Exported
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return true if the file was uploaded or did not need to be
+	 */
+	@Exported
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Exported
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	@Exported
+	public boolean isDuplicate() {
+		return duplicate;
+	}
+
+	/**
+	 * @return the outcome of this upload as seen by another request for
+	 *         <code>path</code> that waited for it instead of sending the
+	 *         file again
+	 */
+	UploadResult duplicateAt(String path) {
+		return new UploadResult(path, target, success, skipped, true, size,
+				digest, new UploadMetrics());
+	}
+
+	@Exported
+	public long getSize() {
+		return size;
+	}
+
+	@Exported
+	public String getDigest() {
+		return digest;
+	}
+
+	@Exported(inline = true)
+	public UploadMetrics getMetrics() {
+		return metrics;
+	}
+
+	public String getStatus() {
+		if (duplicate) {
+			return success ? "duplicate" : "failed";
+		}
+		return skipped ? "unchanged" : success ? "uploaded" : "failed";
+	}
+
+	@Override
+	public String toString() {
+		return path + " " + getStatus();
+	}
+}
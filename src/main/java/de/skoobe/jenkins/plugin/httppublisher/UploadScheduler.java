@@ -0,0 +1,241 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs upload jobs with at most a fixed number of them in flight and returns
+ * their results in the order the jobs were submitted.
+ * 
+ * Jobs run on a pool of as many platform threads as may be in flight, or on
+ * Java 21 and later optionally on a virtual thread each. Virtual threads are
+ * cheap enough to keep as many uploads in flight as the connection pool
+ * allows when publishing many small files.
+ */
+public final class UploadScheduler {
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	/**
+	 * Uploads in flight on virtual threads if the connection pool has no
+	 * limit.
+	 */
+	private static final int VIRTUAL_IN_FLIGHT = 64;
+
+	/**
+	 * <code>Executors.newVirtualThreadPerTaskExecutor()</code>, null before
+	 * Java 21.
+	 */
+	private static final Method newVirtualThreadPerTaskExecutor = virtualThreadsMethod();
+
+	private final int maxInFlight;
+	private final boolean virtualThreads;
+
+	public UploadScheduler(int maxInFlight) {
+		this(maxInFlight, false);
+	}
+
+	UploadScheduler(int maxInFlight, boolean virtualThreads) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.virtualThreads = virtualThreads && newVirtualThreadPerTaskExecutor != null;
+	}
+
+	/**
+	 * @return a scheduler with a virtual thread per upload and as many
+	 *         uploads in flight as the connection pool has connections to a
+	 *         server, or {@link #VIRTUAL_IN_FLIGHT} if it has no limit, if the
+	 *         profile asks for that and the JVM has virtual threads, else one
+	 *         with the parallel uploads of the profile
+	 */
+	static UploadScheduler of(HttpPublisherProfile profile) {
+		if (profile.isVirtualThreads()) {
+			if (isVirtualThreadsAvailable()) {
+				// more would wait for a pooled connection and time out
+				int limit = profile.getConnectionLimit();
+				return new UploadScheduler(limit > 0 ? limit : VIRTUAL_IN_FLIGHT, true);
+			}
+			profile.log("virtual threads need Java 21, using "
+					+ profile.getMaxParallelUploads() + " upload thread(s)");
+		}
+		return new UploadScheduler(profile.getMaxParallelUploads());
+	}
+
+	static boolean isVirtualThreadsAvailable() {
+		return newVirtualThreadPerTaskExecutor != null;
+	}
+
+	private static Method virtualThreadsMethod() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Runs every job, also when some of them fail.
+	 * 
+	 * @return the results of the jobs
+	 * @throws IOException
+	 *             the first failure of a job, once all jobs are done
+	 */
+	public <T> List<T> invokeAll(List<? extends Callable<T>> jobs)
+			throws IOException, InterruptedException {
+		List<T> results = new ArrayList<T>(jobs.size());
+		if (maxInFlight == 1 || jobs.size() <= 1) {
+			// no need for extra threads
+			Exception failure = null;
+			for (final Callable<T> job : jobs) {
+				try {
+					results.add(call(job));
+				} catch (IOException e) {
+					failure = failure != null ? failure : e;
+				} catch (RuntimeException e) {
+					failure = failure != null ? failure : e;
+				}
+			}
+			if (failure != null) {
+				throw rethrow(failure);
+			}
+			return results;
+		}
+		if (virtualThreads) {
+			return invokeOnVirtualThreads(jobs);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(maxInFlight, jobs.size()), new UploadThreadFactory());
+		try {
+			return getAll(executor.invokeAll(jobs));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Starts a virtual thread per job once a slot is free, so the threads of
+	 * jobs waiting for their turn are not even created.
+	 */
+	private <T> List<T> invokeOnVirtualThreads(List<? extends Callable<T>> jobs)
+			throws IOException, InterruptedException {
+		ExecutorService executor;
+		try {
+			executor = (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+		} catch (Exception e) {
+			throw new IOException("cannot start virtual threads: " + e, e);
+		}
+		final Semaphore slots = new Semaphore(maxInFlight);
+		List<Future<T>> futures = new ArrayList<Future<T>>(jobs.size());
+		try {
+			for (final Callable<T> job : jobs) {
+				slots.acquire();
+				futures.add(executor.submit(new Callable<T>() {
+					public T call() throws Exception {
+						try {
+							return job.call();
+						} finally {
+							slots.release();
+						}
+					}
+				}));
+			}
+			return getAll(futures);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for all jobs before throwing the first failure, so none of them
+	 * is interrupted by shutting down their threads.
+	 */
+	private static <T> List<T> getAll(List<Future<T>> futures) throws IOException,
+			InterruptedException {
+		List<T> results = new ArrayList<T>(futures.size());
+		Exception failure = null;
+		for (final Future<T> future : futures) {
+			try {
+				results.add(get(future));
+			} catch (IOException e) {
+				failure = failure != null ? failure : e;
+			} catch (RuntimeException e) {
+				failure = failure != null ? failure : e;
+			}
+		}
+		if (failure != null) {
+			throw rethrow(failure);
+		}
+		return results;
+	}
+
+	private static IOException rethrow(Exception failure) {
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		return (IOException) failure;
+	}
+
+	private static <T> T call(Callable<T> job) throws IOException,
+			InterruptedException {
+		try {
+			return job.call();
+		} catch (IOException e) {
+			throw e;
+		} catch (InterruptedException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException,
+			InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(String.valueOf(cause), cause);
+		}
+	}
+
+	private static class UploadThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HttpPublisher upload #"
+					+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.tools.ant.DirectoryScanner;
+
+/**
+ * Matches the source masks of all entries in a single walk over the
+ * workspace. Directories are listed in parallel, and directories no mask can
+ * match below, or excluded by Ant's default excludes, are not entered at all.
+ */
+final class WorkspaceScanner {
+
+	/**
+	 * Deepest directory level entered, guards against symbolic link loops.
+	 */
+	private static final int MAX_DEPTH = 100;
+
+	private static final int THREADS = Math.min(8,
+			2 * Runtime.getRuntime().availableProcessors());
+
+	private static final AtomicInteger threadNumber = new AtomicInteger();
+
+	private static final MaskPattern DEFAULT_EXCLUDES = MaskPattern
+			.compile(DirectoryScanner.getDefaultExcludes());
+
+	private final File base;
+	private final MaskPattern[] masks;
+	private final List<Queue<String>> matches;
+
+	private final AtomicInteger pending = new AtomicInteger();
+	private final CountDownLatch done = new CountDownLatch(1);
+	private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+	private ExecutorService executor;
+
+	WorkspaceScanner(File base, List<String> masks) {
+		this.base = base;
+		this.masks = new MaskPattern[masks.size()];
+		this.matches = new ArrayList<Queue<String>>(masks.size());
+		for (int i = 0; i < this.masks.length; i++) {
+			this.masks[i] = MaskPattern.compile(masks.get(i));
+			matches.add(new ConcurrentLinkedQueue<String>());
+		}
+	}
+
+	/**
+	 * @return for each mask, the relative paths of the matching files, sorted
+	 */
+	List<List<String>> scan() throws IOException, InterruptedException {
+		if (!base.isDirectory()) {
+			throw new IOException(base + " does not exist");
+		}
+		executor = new ThreadPoolExecutor(THREADS, THREADS, 1, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ScanThreadFactory());
+		try {
+			submit(base, new String[0]);
+			done.await();
+		} finally {
+			executor.shutdownNow();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		List<List<String>> result = new ArrayList<List<String>>(matches.size());
+		for (final Queue<String> paths : matches) {
+			List<String> sorted = new ArrayList<String>(paths);
+			Collections.sort(sorted);
+			result.add(sorted);
+		}
+		return result;
+	}
+
+	/**
+	 * @return why nothing matched the mask, like
+	 *         {@link hudson.FilePath#validateAntFileMask(String)} but without
+	 *         walking the workspace again
+	 */
+	String explainEmpty(int index) {
+		MaskPattern mask = masks[index];
+		if (mask.isEmpty()) {
+			return "No file mask given";
+		}
+		String literal = mask.literalBase();
+		if (literal.length() > 0 && !new File(base, literal).isDirectory()) {
+			return "'" + literal + "' doesn't exist in " + base;
+		}
+		return "No files match '" + mask + "' in " + base;
+	}
+
+	private void submit(final File dir, final String[] path) {
+		pending.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						visit(dir, path);
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+						done.countDown();
+					} finally {
+						if (pending.decrementAndGet() == 0) {
+							done.countDown();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the scan is being cancelled
+			pending.decrementAndGet();
+		}
+	}
+
+	private void visit(File dir, String[] path) {
+		String[] names = dir.list();
+		if (names == null) {
+			return;
+		}
+		String prefix = join(path);
+		for (final String name : names) {
+			String[] child = append(path, name);
+			File file = new File(dir, name);
+			if (file.isDirectory()) {
+				if (path.length < MAX_DEPTH && shouldEnter(child)) {
+					submit(file, child);
+				}
+			} else if (!DEFAULT_EXCLUDES.matches(child)) {
+				String relative = prefix.length() == 0 ? name : prefix + "/" + name;
+				for (int i = 0; i < masks.length; i++) {
+					if (masks[i].matches(child)) {
+						matches.get(i).add(relative);
+					}
+				}
+			}
+		}
+	}
+
+	private boolean shouldEnter(String[] dir) {
+		if (DEFAULT_EXCLUDES.matches(dir) || DEFAULT_EXCLUDES.matchesAllBelow(dir)) {
+			return false;
+		}
+		for (final MaskPattern mask : masks) {
+			if (mask.couldMatchBelow(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String[] append(String[] path, String name) {
+		String[] child = new String[path.length + 1];
+		System.arraycopy(path, 0, child, 0, path.length);
+		child[path.length] = name;
+		return child;
+	}
+
+	private static String join(String[] path) {
+		StringBuilder joined = new StringBuilder();
+		for (final String name : path) {
+			joined.append(joined.length() == 0 ? "" : "/").append(name);
+		}
+		return joined.toString();
+	}
+
+	private static class ScanThreadFactory implements ThreadFactory {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HttpPublisher scan #"
+					+ threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+/**
+ * Sends a file without reading it into the Java heap where possible: to a
+ * channel with {@link FileChannel#transferTo} (sendfile on Linux), and to a
+ * stream, such as a TLS connection, from memory-mapped windows of the file
+ * through one reused buffer.
+ */
+public class ZeroCopyFileEntity extends AbstractHttpEntity implements ChannelWritable {
+
+	/**
+	 * Bytes of the file mapped at a time.
+	 */
+	private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file;
+
+	public ZeroCopyFileEntity(File file) {
+		this.file = file;
+		setContentType(ContentType.DEFAULT_BINARY.toString());
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	public long getContentLength() {
+		return file.length();
+	}
+
+	public InputStream getContent() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	public boolean isStreaming() {
+		return false;
+	}
+
+	public boolean isChannelWritable() {
+		return true;
+	}
+
+	public Transfer open() throws IOException {
+		final RandomAccessFile in = new RandomAccessFile(file, "r");
+		final FileChannel source = in.getChannel();
+		final long length;
+		final long modified;
+		try {
+			length = source.size();
+			modified = file.lastModified();
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new Transfer() {
+			public long getLength() {
+				return length;
+			}
+
+			public long writeTo(WritableByteChannel channel) throws IOException {
+				long position = 0;
+				while (position < length) {
+					long sent = source.transferTo(position, length - position, channel);
+					if (sent <= 0) {
+						// a blocking channel takes at least one byte unless the
+						// file shrank or the connection is gone
+						checkUnchanged(source, length, modified);
+						throw new IOException("connection closed after " + position + " bytes");
+					}
+					position += sent;
+				}
+				checkUnchanged(source, length, modified);
+				return position;
+			}
+
+			public void close() throws IOException {
+				in.close();
+			}
+		};
+	}
+
+	/**
+	 * Fails the upload of a file that was written to while it was sent, as
+	 * the server would store a mix of both versions.
+	 */
+	private void checkUnchanged(FileChannel source, long length, long modified)
+			throws IOException {
+		if (source.size() != length || file.lastModified() != modified) {
+			throw new IOException(file + " changed while sending " + length + " bytes");
+		}
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			FileChannel source = in.getChannel();
+			long length = source.size();
+			long modified = file.lastModified();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			for (long position = 0; position < length; position += WINDOW_SIZE) {
+				MappedByteBuffer window = source.map(FileChannel.MapMode.READ_ONLY,
+						position, Math.min(WINDOW_SIZE, length - position));
+				while (window.hasRemaining()) {
+					int len = Math.min(buffer.length, window.remaining());
+					window.get(buffer, 0, len);
+					out.write(buffer, 0, len);
+				}
+			}
+			checkUnchanged(source, length, modified);
+			out.flush();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package de.skoobe.jenkins.plugin.httppublisher;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler.UpgradeCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler.UpgradeCodecFactory;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.AsciiString;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A server speaking HTTP/2 over plain connections (h2c), for the uploads of
+ * profiles using {@link HttpPublisherProfile.Protocol#HTTP_2}; the Jetty of
+ * {@link UploadHelper} only speaks HTTP/1.1. Clients upgrade on their first
+ * request.
+ *
+ * Every request is recorded as <code>&lt;protocol&gt; &lt;method&gt;
+ * &lt;path&gt; &lt;length&gt;</code>. A PUT is answered with 201, or with
+ * 308 for a <code>Content-Range</code> that is not the last; a HEAD with 200
+ * if the file was uploaded, otherwise with 404.
+ */
+public class H2cServer {
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+	private static final int MAX_CONTENT_LENGTH = 4 * 1024 * 1024;
+
+	private final EventLoopGroup group = new NioEventLoopGroup(1);
+	private final List<String> requests = new ArrayList<String>();
+	private final Map<String, Integer> files = new HashMap<String, Integer>();
+	private Channel channel;
+
+	public void startServer() throws InterruptedException {
+		ServerBootstrap bootstrap = new ServerBootstrap();
+		bootstrap.group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					protected void initChannel(SocketChannel ch) {
+						HttpServerCodec http1 = new HttpServerCodec();
+						ch.pipeline().addLast(http1,
+								new HttpServerUpgradeHandler(http1, new Upgrade(), MAX_CONTENT_LENGTH),
+								new HttpObjectAggregator(MAX_CONTENT_LENGTH),
+								new RequestHandler("HTTP/1.1"));
+					}
+				});
+		channel = bootstrap.bind("localhost", 0).sync().channel();
+	}
+
+	public int getServerPort() {
+		return ((InetSocketAddress) channel.localAddress()).getPort();
+	}
+
+	public void stopServer() throws InterruptedException {
+		channel.close().sync();
+		group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+	}
+
+	public synchronized List<String> getRequests() {
+		return new ArrayList<String>(requests);
+	}
+
+	private synchronized HttpResponseStatus handle(String protocol,
+			FullHttpRequest request, FullHttpResponse response) {
+		String path = request.uri();
+		int length = request.content().readableBytes();
+		requests.add(protocol + " " + request.method() + " " + path + " " + length);
+		if (request.method().equals(HttpMethod.HEAD)) {
+			Integer uploaded = files.get(path);
+			if (uploaded == null) {
+				return HttpResponseStatus.NOT_FOUND;
+			}
+			HttpUtil.setContentLength(response, uploaded);
+			return HttpResponseStatus.OK;
+		}
+		String range = request.headers().get(HttpHeaderNames.CONTENT_RANGE);
+		Matcher m = range == null ? null : CONTENT_RANGE.matcher(range);
+		if (m != null && m.matches()) {
+			long end = Long.parseLong(m.group(2));
+			long total = Long.parseLong(m.group(3));
+			if (end + 1 < total) {
+				response.headers().set(HttpHeaderNames.RANGE, "bytes=0-" + end);
+				return HttpResponseStatus.PERMANENT_REDIRECT;
+			}
+			files.put(path, (int) total);
+		} else {
+			files.put(path, length);
+		}
+		return HttpResponseStatus.CREATED;
+	}
+
+	private final class Upgrade implements UpgradeCodecFactory {
+		public UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+			if (!AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+				return null;
+			}
+			return new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().build(),
+					new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+						@Override
+						protected void initChannel(Channel stream) {
+							stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true),
+									new HttpObjectAggregator(MAX_CONTENT_LENGTH),
+									new RequestHandler("HTTP/2"));
+						}
+					}));
+		}
+	}
+
+	private final class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+		private final String protocol;
+
+		RequestHandler(String protocol) {
+			this.protocol = protocol;
+		}
+
+		@Override
+		protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+			FullHttpResponse response = new DefaultFullHttpResponse(
+					HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+			HttpUtil.setContentLength(response, 0);
+			response.setStatus(handle(protocol, request, response));
+			ctx.writeAndFlush(response);
+		}
+	}
+}
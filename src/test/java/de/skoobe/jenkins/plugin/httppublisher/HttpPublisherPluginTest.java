@@ -1,10 +1,31 @@
 package de.skoobe.jenkins.plugin.httppublisher;
 
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import hudson.model.Hudson.MasterComputer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
 import org.junit.Before;
 import org.jvnet.hudson.test.HudsonTestCase;
+import org.jvnet.hudson.test.TestBuilder;
 
 import com.gargoylesoftware.htmlunit.html.HtmlForm;
 import com.gargoylesoftware.htmlunit.html.HtmlInput;
@@ -48,6 +69,329 @@ public class HttpPublisherPluginTest extends HudsonTestCase {
 		assertEquals(HOSTNAME, parsedProfile.getServers().get(0).getHostname());
 	}
 	
+	public void testMaxParallelUploadsConfiguration() throws Exception {
+		JSONObject obj = new JSONObject();
+		JSONObject profile = new JSONObject();
+		JSONObject servers = new JSONObject();
+		servers.put("hostname", "http://localhost/");
+		profile.put("servers", servers);
+		profile.put("name", "testMPU");
+		profile.put("maxParallelUploads", "4");
+		obj.put("profile", profile);
+		descriptor.configure(null, obj);
+		assertEquals(4, descriptor.getProfiles()[0].getMaxParallelUploads());
+
+		profile.put("maxParallelUploads", "");
+		descriptor.configure(null, obj);
+		assertEquals(1, descriptor.getProfiles()[0].getMaxParallelUploads());
+	}
+	
+	public void testPublishReport() throws Exception {
+		List<UploadResult> results = new ArrayList<UploadResult>();
+		for (int i = 1; i <= 100; i++) {
+			UploadMetrics metrics = new UploadMetrics();
+			metrics.addBytesSent(1000);
+			metrics.setDuration(i);
+			results.add(new UploadResult("file-" + i, "file-" + i, true, false, 1000, null, metrics));
+		}
+		results.add(new UploadResult("failed", "failed", false, false, 1000, null, new UploadMetrics()));
+		PublishReportAction report = new PublishReportAction();
+		report.add(results, 1000);
+		assertEquals(101, report.getFileCount());
+		assertEquals(1, report.getFailedCount());
+		assertEquals(100000, report.getBytesSent());
+		assertEquals(50, report.getLatencyP50());
+		assertEquals(95, report.getLatencyP95());
+		assertEquals(99, report.getLatencyP99());
+		assertEquals(0.1, report.getThroughput(), 0.0001);
+		assertEquals(100, report.getSlowest(1).get(0).getMetrics().getDuration());
+	}
+	
+	public void testRemoteIndex() throws Exception {
+		UploadMetrics metrics = new UploadMetrics();
+		metrics.setServer("http://a/ http://b/");
+		metrics.setEtag("\"abc\"");
+		List<UploadResult> results = new ArrayList<UploadResult>();
+		results.add(new UploadResult("target/x.jar", "x.jar", true, false, 10, "00ff", metrics));
+		results.add(new UploadResult("target/y.jar", "y.jar", false, false, 10, "00ee", metrics));
+		RemoteIndex index = RemoteIndex.of("testRemoteIndex");
+		index.update(results);
+		index.save();
+		assertTrue(new File(hudson.getRootDir(), "httppublisher-index/testRemoteIndex.index").isFile());
+
+		Map<String, ArrayList<RemoteIndex.Record>> found = index.lookup(
+				Arrays.asList("http://a/", "http://c/"), Arrays.asList("x.jar", "y.jar"));
+		assertEquals(1, found.size());
+		assertEquals("http://a/", found.get("x.jar").get(0).getServer());
+		assertEquals("\"abc\"", found.get("x.jar").get(0).getEtag());
+	}
+	
+	public void testProfileRegistry() throws Exception {
+		HttpPublisherProfile a = new HttpPublisherProfile("a", new Server[] { new Server("http://a/") });
+		HttpPublisherProfile b = new HttpPublisherProfile("b", new Server[] { new Server("http://b/") });
+		descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { a, b });
+		assertSame(a, descriptor.getProfile(null));
+		assertSame(b, descriptor.getProfile("b"));
+		assertNull(descriptor.getProfile("c"));
+		assertSame(b, new HttpPublisherPlugin("b").getProfile());
+
+		long version = descriptor.versionOf(b);
+		assertTrue(version >= 0);
+		assertEquals(-1, descriptor.versionOf(new HttpPublisherProfile("b", new Server[0])));
+
+		// nodes get their own copy to log to
+		HttpPublisherProfile resolved = ProfileSnapshot.of(b).resolve(MasterComputer.localChannel);
+		assertNotSame(b, resolved);
+		assertEquals("http://b/", resolved.getServers().get(0).getHostname());
+
+		descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { b });
+		assertTrue(descriptor.versionOf(b) != version);
+		assertNull(descriptor.getProfile("a"));
+	}
+
+	/**
+	 * @return a project writing <code>artifact.bin</code> to its workspace and
+	 *         publishing it to <code>server</code>
+	 */
+	private FreeStyleProject publishingProject(String name, String server,
+			boolean async) throws IOException {
+		HttpPublisherProfile profile = new HttpPublisherProfile(name, new Server[] {
+				new Server(server) });
+		descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { profile });
+		FreeStyleProject project = createFreeStyleProject(name);
+		project.getBuildersList().add(new TestBuilder() {
+			public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+					BuildListener listener) throws InterruptedException, IOException {
+				build.getWorkspace().child("artifact.bin").copyFrom(
+						new FilePath(UploadHelper.fileOfLength(1000)));
+				return true;
+			}
+		});
+		HttpPublisherPlugin publisher = new HttpPublisherPlugin(name);
+		Entry entry = new Entry();
+		entry.sourceFile = "artifact.bin";
+		publisher.getEntries().add(entry);
+		publisher.setAsync(async);
+		project.getPublishersList().add(publisher);
+		return project;
+	}
+
+	private static String statusOf(FreeStyleBuild build) {
+		PublishReportAction report = build.getAction(PublishReportAction.class);
+		return report == null ? null : report.getStatus();
+	}
+
+	public void testPublishWithFailingServer() throws Exception {
+		UploadHelper helper = new UploadHelper();
+		helper.startServer();
+		try {
+			// nothing listens on port 1, so every file fails over to the helper
+			HttpPublisherProfile profile = new HttpPublisherProfile("testPublishWithFailingServer",
+					new Server[] { new Server("http://localhost:1/"),
+							new Server(String.format("http://localhost:%d/", helper.getServerPort())) });
+			profile.setMaxParallelUploads(2);
+			profile.setMaxRetries(0);
+			descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { profile });
+			FreeStyleProject project = createFreeStyleProject("testPublishWithFailingServer");
+			project.getBuildersList().add(new TestBuilder() {
+				public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+						BuildListener listener) throws InterruptedException, IOException {
+					for (final String name : new String[] { "a/one.bin", "a/two.bin", "b/three.bin" }) {
+						build.getWorkspace().child(name).copyFrom(
+								new FilePath(UploadHelper.fileOfLength(500)));
+					}
+					return true;
+				}
+			});
+			HttpPublisherPlugin publisher = new HttpPublisherPlugin(profile.getName());
+			for (final String mask : new String[] { "a/*.bin", "b/*.bin", "missing/*.bin" }) {
+				Entry entry = new Entry();
+				entry.sourceFile = mask;
+				publisher.getEntries().add(entry);
+			}
+			project.getPublishersList().add(publisher);
+
+			FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+			assertLogContains("No file(s) found: missing/*.bin", build);
+			PublishReportAction report = build.getAction(PublishReportAction.class);
+			assertEquals(3, report.getFileCount());
+			assertEquals(0, report.getFailedCount());
+			for (final String name : new String[] { "a/one.bin", "a/two.bin", "b/three.bin" }) {
+				File file = new File(build.getWorkspace().child(name).getRemote());
+				assertTrue(helper.contains(file.getName(), new FileEntity(file)));
+			}
+
+			// with the helper failing too, every file is still tried and reported
+			helper.failRequests(100);
+			build = project.scheduleBuild2(0).get();
+			assertBuildStatus(Result.UNSTABLE, build);
+			report = build.getAction(PublishReportAction.class);
+			assertEquals(3, report.getFileCount());
+			assertEquals(3, report.getFailedCount());
+		} finally {
+			helper.stopServer();
+		}
+	}
+
+	public void testAsyncPublish() throws Exception {
+		UploadHelper helper = new UploadHelper();
+		helper.startServer();
+		try {
+			FreeStyleProject project = publishingProject("testAsyncPublish",
+					String.format("http://localhost:%d/", helper.getServerPort()), true);
+			FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+			assertLogContains("for publishing in the background", build);
+			for (int i = 0; i < 100 && !PublishReportAction.COMPLETED.equals(statusOf(build))
+					&& !PublishReportAction.FAILED.equals(statusOf(build)); i++) {
+				Thread.sleep(100);
+			}
+			assertEquals(PublishReportAction.COMPLETED, statusOf(build));
+			File artifact = new File(build.getWorkspace().child("artifact.bin").getRemote());
+			assertTrue(helper.contains("artifact.bin", new FileEntity(artifact)));
+			for (final File file : build.getRootDir().listFiles()) {
+				assertFalse(file.getName().startsWith("httppublisher-spool"));
+			}
+			assertFalse(new File(hudson.getRootDir(), AsyncUploadQueue.JOURNAL).exists());
+			assertEquals(0, AsyncUploadQueue.get().getSpooledBytes());
+		} finally {
+			helper.stopServer();
+		}
+	}
+
+	public void testAsyncPublishFailure() throws Exception {
+		// nothing listens on port 1
+		FreeStyleProject project = publishingProject("testAsyncPublishFailure",
+				"http://localhost:1/", true);
+		descriptor.getProfile("testAsyncPublishFailure").setMaxRetries(0);
+		// unstable if the upload failed before the build finished
+		FreeStyleBuild build = project.scheduleBuild2(0).get();
+		for (int i = 0; i < 100 && !PublishReportAction.FAILED.equals(statusOf(build)); i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(PublishReportAction.FAILED, statusOf(build));
+		assertLogContains("Background publishing failed: not all files could be uploaded", build);
+	}
+
+	public void testAsyncPublishAtCapacity() throws Exception {
+		UploadHelper helper = new UploadHelper();
+		helper.startServer();
+		long limit = AsyncUploadQueue.SPOOL_LIMIT;
+		AsyncUploadQueue.SPOOL_LIMIT = 100;
+		try {
+			FreeStyleProject project = publishingProject("testAsyncPublishAtCapacity",
+					String.format("http://localhost:%d/", helper.getServerPort()), true);
+			FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+			// the file does not fit into the spool, so it is published right away
+			assertLogContains("Background publishing is at capacity, publishing now", build);
+			assertNull(statusOf(build));
+			File artifact = new File(build.getWorkspace().child("artifact.bin").getRemote());
+			assertTrue(helper.contains("artifact.bin", new FileEntity(artifact)));
+			assertEquals(0, AsyncUploadQueue.get().getSpooledBytes());
+		} finally {
+			AsyncUploadQueue.SPOOL_LIMIT = limit;
+			helper.stopServer();
+		}
+	}
+
+	public void testAsyncQueueRecovery() throws Exception {
+		FreeStyleProject project = createFreeStyleProject("testAsyncQueueRecovery");
+		FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+		HttpPublisherPlugin.reportOf(build).setStatus(PublishReportAction.QUEUED);
+		File spool = new File(build.getRootDir(), "httppublisher-spool-lost");
+		spool.mkdirs();
+		new FileOutputStream(new File(spool, "artifact.bin")).close();
+		// what a controller that stopped with the build queued left behind
+		File journal = new File(hudson.getRootDir(), AsyncUploadQueue.JOURNAL);
+		FileOutputStream out = new FileOutputStream(journal);
+		out.write((project.getFullName() + "\t" + build.getNumber() + "\t"
+				+ spool.getPath() + "\n").getBytes("UTF-8"));
+		out.close();
+
+		AsyncUploadQueue.recover();
+		assertEquals(PublishReportAction.FAILED, statusOf(build));
+		assertLogContains("Background publishing failed: lost by a restart", build);
+		assertFalse(spool.exists());
+		assertFalse(journal.exists());
+	}
+
+	public void testPublishManifest() throws Exception {
+		UploadHelper first = new UploadHelper();
+		UploadHelper second = new UploadHelper();
+		first.startServer();
+		second.startServer();
+		try {
+			HttpPublisherProfile profile = new HttpPublisherProfile("testPublishManifest",
+					new Server[] { new Server(String.format("http://localhost:%d/", first.getServerPort())) });
+			profile.setIncremental(HttpPublisherProfile.Incremental.MANIFEST);
+			descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { profile });
+			FreeStyleProject project = createFreeStyleProject("testPublishManifest");
+			project.getBuildersList().add(new TestBuilder() {
+				public boolean perform(AbstractBuild<?, ?> build, Launcher launcher,
+						BuildListener listener) throws InterruptedException, IOException {
+					for (final String name : new String[] { "one.bin", "two.bin" }) {
+						if (!build.getWorkspace().child(name).exists()) {
+							build.getWorkspace().child(name).copyFrom(
+									new FilePath(UploadHelper.fileOfLength(500)));
+						}
+					}
+					return true;
+				}
+			});
+			// two steps with the same profile share the manifest of the build
+			for (final String name : new String[] { "one.bin", "two.bin" }) {
+				HttpPublisherPlugin publisher = new HttpPublisherPlugin(profile.getName());
+				Entry entry = new Entry();
+				entry.sourceFile = name;
+				publisher.getEntries().add(entry);
+				project.getPublishersList().add(publisher);
+			}
+
+			assertBuildStatusSuccess(project.scheduleBuild2(0));
+			FreeStyleBuild build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+			assertEquals(2, build.getAction(PublishReportAction.class).getSkippedCount());
+
+			// the new server has none of the files
+			profile.setServers(Arrays.asList(new Server(String.format("http://localhost:%d/",
+					second.getServerPort()))));
+			build = assertBuildStatusSuccess(project.scheduleBuild2(0));
+			for (final String name : new String[] { "one.bin", "two.bin" }) {
+				File file = new File(build.getWorkspace().child(name).getRemote());
+				assertTrue(second.contains(name, new FileEntity(file)));
+			}
+		} finally {
+			first.stopServer();
+			second.stopServer();
+		}
+	}
+
+	public void testConnectionPools() throws Exception {
+		// nothing listens on port 1
+		HttpPublisherProfile profile = new HttpPublisherProfile("testConnectionPools",
+				new Server[] { new Server("http://localhost:1/") });
+		descriptor.getRawProfiles().replaceBy(new HttpPublisherProfile[] { profile });
+		ProfileSnapshot snapshot = ProfileSnapshot.of(profile);
+		FilePath base = new FilePath(createTmpDir());
+		base.act(new ConnectionPools.Acquire(snapshot));
+		HttpClient client = ConnectionPools.client(profile);
+		// a second build reuses the pool
+		base.act(new ConnectionPools.Acquire(snapshot));
+		assertSame(client, ConnectionPools.client(profile));
+		base.act(new ConnectionPools.Release(snapshot));
+		assertSame(client, ConnectionPools.client(profile));
+		base.act(new ConnectionPools.Release(snapshot));
+		assertFalse(ConnectionPools.isOpen(profile));
+		try {
+			ConnectionPools.client(profile);
+			fail("the pool was shut down");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// uploads outside of a build release the pool they acquired
+		assertFalse(profile.upload("x", new StringEntity("x")));
+		assertFalse(ConnectionPools.isOpen(profile));
+	}
+
 	public void testMoreComplexProjectConfiguration() throws Exception {
 		String NAME = "testSPC";
 		String HOSTNAME = "http://localhost/";
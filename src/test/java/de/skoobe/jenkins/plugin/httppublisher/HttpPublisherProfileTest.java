@@ -1,14 +1,36 @@
 package de.skoobe.jenkins.plugin.httppublisher;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
 import org.apache.http.entity.FileEntity;
 import org.junit.After;
 import org.junit.Before;
 
 import junit.framework.TestCase;
 
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Incremental;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.Protocol;
+import de.skoobe.jenkins.plugin.httppublisher.HttpPublisherProfile.ServerSelection;
+
 public class HttpPublisherProfileTest extends TestCase {
 
 	private UploadHelper helper;
@@ -22,10 +44,13 @@ public class HttpPublisherProfileTest extends TestCase {
 		profile = new HttpPublisherProfile("test-profile", new Server[] {
 				new Server(String.format("http://localhost:%d/", helper.getServerPort()))
 		});
+		// like a build does before uploading
+		ConnectionPools.acquire(profile);
 	}
 	
 	@After
 	protected void tearDown() throws Exception {
+		ConnectionPools.release(profile);
 		helper.stopServer();
 	}
 	
@@ -35,6 +60,453 @@ public class HttpPublisherProfileTest extends TestCase {
 		assertTrue(helper.contains("testUpload", entity));
 	}
 	
+	public void testHttp2Transport() throws Exception {
+		// the Jetty test server only speaks HTTP/1.1, so this covers the
+		// fallback when the server does not upgrade
+		profile.setProtocol(Protocol.HTTP_2);
+		FileEntity entity = new FileEntity(UploadHelper.fileOfLength(301));
+		assertTrue(profile.upload("testHttp2Transport", entity));
+		assertTrue(helper.contains("testHttp2Transport", entity));
+	}
+	
+	public void testHttp2Negotiated() throws Exception {
+		H2cServer h2c = new H2cServer();
+		h2c.startServer();
+		String hostname = String.format("http://localhost:%d/", h2c.getServerPort());
+		HttpPublisherProfile h2 = new HttpPublisherProfile("testHttp2Negotiated",
+				new Server[] { new Server(hostname) });
+		h2.setProtocol(Protocol.HTTP_2);
+		ConnectionPools.acquire(h2);
+		try {
+			Transport transport = Transport.of(h2);
+			if (!(transport instanceof Http2Transport)) {
+				// no HTTP/2 client before Java 11
+				return;
+			}
+			// the first request upgrades the connection to h2c
+			HttpResponse head = transport.head(hostname + "testHttp2Negotiated");
+			assertEquals(404, head.getStatusLine().getStatusCode());
+			assertEquals(new ProtocolVersion("HTTP", 2, 0), head.getProtocolVersion());
+	
+			assertTrue(h2.upload("testHttp2Negotiated", new FileEntity(UploadHelper.fileOfLength(301))));
+			h2.setChunkSize(1);
+			assertTrue(h2.uploadChunked("testHttp2Chunked", UploadHelper.fileOfLength(1024 * 1024 + 100)));
+			h2.setChunkSize(0);
+			h2.setReplicate(true);
+			File replica = UploadHelper.fileOfLength(201);
+			assertTrue(h2.upload(replica));
+			assertEquals(Arrays.asList(
+					"HTTP/2 HEAD /testHttp2Negotiated 0",
+					"HTTP/2 PUT /testHttp2Negotiated 301",
+					"HTTP/2 PUT /testHttp2Chunked 1048576",
+					"HTTP/2 PUT /testHttp2Chunked 100",
+					"HTTP/2 PUT /" + replica.getName() + " 201"), h2c.getRequests());
+		} finally {
+			ConnectionPools.release(h2);
+			h2c.stopServer();
+		}
+	}
+	
+	public void testZeroCopyUpload() throws Exception {
+		profile.setZeroCopy(true);
+		File file = UploadHelper.fileOfLength(1024 * 1024 + 7);
+		assertTrue(profile.upload(file));
+		assertTrue(helper.contains(file.getName(), new FileEntity(file)));
+	}
+	
+	public void testPrefetchPipeline() throws Exception {
+		// larger than the buffers of a file, so reading waits for sending
+		File large = UploadHelper.fileOfLength(
+				PrefetchPipeline.BUFFERS_PER_FILE * BufferPool.BUFFER_SIZE * 2 + 5);
+		File small = UploadHelper.fileOfLength(1000);
+		BufferPool pool = new BufferPool(8);
+		PrefetchPipeline pipeline = new PrefetchPipeline(pool, Arrays.asList(large, null, small), false);
+		assertNull(pipeline.get(1));
+		pipeline.start();
+		UploadMetrics metrics = new UploadMetrics();
+		// the retry reads the file from disk again
+		helper.failRequests(1);
+		assertTrue(profile.upload("large", pipeline.get(0), metrics));
+		pipeline.get(0).release();
+		assertTrue(profile.upload("small", pipeline.get(2), metrics));
+		pipeline.get(2).release();
+		pipeline.close();
+		assertTrue(helper.contains("large", new FileEntity(large)));
+		assertTrue(helper.contains("small", new FileEntity(small)));
+		assertNotNull(pool.reserve(8, 0));
+
+		pool = new BufferPool(8);
+		pipeline = new PrefetchPipeline(pool, Arrays.asList(small, large), true);
+		pipeline.start();
+		assertEquals(FileDigest.of(small).getSha256(), pipeline.get(0).getDigest().getSha256());
+		assertTrue(profile.upload("digested", pipeline.get(0), metrics));
+		pipeline.get(0).release();
+		// too large to be digested ahead, but still read ahead
+		assertNull(pipeline.get(1).getDigest());
+		assertTrue(profile.upload("undigested", pipeline.get(1), metrics));
+		pipeline.get(1).release();
+		pipeline.close();
+		assertTrue(helper.contains("digested", new FileEntity(small)));
+		assertTrue(helper.contains("undigested", new FileEntity(large)));
+		assertNotNull(pool.reserve(8, 0));
+	}
+	
+	public void testPrefetchPipelineWithBusyPool() throws Exception {
+		BufferPool pool = new BufferPool(4);
+		// another build holds all buffers
+		List<ByteBuffer> taken = pool.reserve(4, 0);
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 5; i++) {
+			files.add(UploadHelper.fileOfLength(1000));
+		}
+		PrefetchPipeline pipeline = new PrefetchPipeline(pool, files, true);
+		long start = System.currentTimeMillis();
+		pipeline.start();
+		for (int i = 0; i < files.size(); i++) {
+			// skipped files have no digest ahead and are sent from disk
+			assertNull(pipeline.get(i).getDigest());
+		}
+		// only the first file waited for buffers
+		assertTrue(System.currentTimeMillis() - start < 3 * PrefetchPipeline.RESERVE_TIMEOUT);
+		assertTrue(profile.upload("busy", pipeline.get(4), new UploadMetrics()));
+		for (int i = 0; i < files.size(); i++) {
+			pipeline.get(i).release();
+		}
+		pipeline.close();
+		assertTrue(helper.contains("busy", new FileEntity(files.get(4))));
+		pool.release(taken);
+		assertNotNull(pool.reserve(4, 0));
+	}
+	
+	public void testBatchedUpload() throws Exception {
+		BatchEntity batch = new BatchEntity();
+		File[] files = new File[3];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = UploadHelper.fileOfLength(100 + i);
+			batch.add("batch/file-" + i, files[i]);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		batch.writeTo(out);
+		assertEquals(out.size(), batch.getContentLength());
+
+		UploadMetrics metrics = new UploadMetrics();
+		Map<String, Integer> statuses = new BatchedUpload(profile,
+				Transport.of(profile), batch, RetryPolicy.start(profile), metrics).run();
+		assertEquals(1, helper.getBatchCount());
+		for (int i = 0; i < files.length; i++) {
+			assertEquals(Integer.valueOf(201), statuses.get("batch/file-" + i));
+			assertTrue(helper.contains("batch/file-" + i, new FileEntity(files[i])));
+		}
+		assertEquals(out.size(), metrics.getBytesSent());
+
+		// files of a refused batch are left to be uploaded one by one
+		helper.rejectBatches(true);
+		statuses = new BatchedUpload(profile, Transport.of(profile), batch,
+				RetryPolicy.start(profile), new UploadMetrics()).run();
+		assertTrue(statuses.isEmpty());
+	}
+	
+	public void testChunkedUpload() throws Exception {
+		File file = UploadHelper.fileOfLength(2 * 1024 * 1024 + 100);
+		profile.setChunkSize(1);
+		helper.failRequests(1);
+		assertTrue(profile.uploadChunked("testChunkedUpload", file));
+		assertTrue(helper.contains("testChunkedUpload", new FileEntity(file)));
+	}
+	
+	public void testChunkedUploadWithoutRangeSupport() throws Exception {
+		File file = UploadHelper.fileOfLength(2 * 1024 * 1024 + 100);
+		profile.setChunkSize(1);
+		helper.ignoreRanges(true);
+		assertTrue(profile.uploadChunked("testChunkedUploadWithoutRangeSupport", file));
+		assertTrue(helper.contains("testChunkedUploadWithoutRangeSupport", new FileEntity(file)));
+	}
+	
+	public void testGzipEntity() throws Exception {
+		File file = File.createTempFile("tUp", ".log");
+		FileOutputStream fos = new FileOutputStream(file);
+		for (int i = 0; i < 1000; i++) {
+			fos.write(("line " + i + "\n").getBytes("UTF-8"));
+		}
+		fos.close();
+		assertFalse(GzipFileEntity.isCompressed(file));
+		GzipFileEntity entity = new GzipFileEntity(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertEquals(out.size(), entity.getCompressedLength());
+		assertTrue(entity.getCompressedLength() < file.length());
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			plain.write(buffer, 0, len);
+		}
+		assertEquals(file.length(), plain.size());
+
+		// what is read is what is written
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		in = entity.getContent();
+		while ((len = in.read(buffer)) != -1) {
+			content.write(buffer, 0, len);
+		}
+		in.close();
+		assertTrue(Arrays.equals(out.toByteArray(), content.toByteArray()));
+
+		File gz = File.createTempFile("tUp", ".bin");
+		fos = new FileOutputStream(gz);
+		fos.write(out.toByteArray());
+		fos.close();
+		assertTrue(GzipFileEntity.isCompressed(gz));
+	}
+	
+	public void testProgressLog() throws Exception {
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		ByteArrayOutputStream detail = new ByteArrayOutputStream();
+		ProgressLog progress = new ProgressLog(new PrintStream(console, true, "UTF-8"),
+				detail, 2, 3);
+		progress.getDetail().println("file=x.jar");
+		progress.done(Arrays.asList(
+				new UploadResult("a/x.jar", "x.jar", true, false, 1, null, new UploadMetrics()),
+				new UploadResult("a/y.jar", "y.jar", false, false, 2, null, new UploadMetrics())));
+		progress.close();
+		String log = console.toString("UTF-8");
+		assertTrue(log.contains("failed: a/y.jar -> y.jar"));
+		assertTrue(log.contains("published 2/2 files (1 failed)"));
+		assertFalse(log.contains("file=x.jar"));
+
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(detail.toByteArray()));
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			plain.write(buffer, 0, len);
+		}
+		assertTrue(plain.toString("UTF-8").contains("file=x.jar"));
+	}
+	
+	public void testEntryTarget() throws Exception {
+		Entry entry = new Entry();
+		assertEquals("a.jar", entry.targetOf("target/a.jar"));
+		entry.preservePath = true;
+		assertEquals("target/a.jar", entry.targetOf("target/a.jar"));
+		entry.targetPath = "releases/42/";
+		assertEquals("releases/42/target/a.jar", entry.targetOf("target/a.jar"));
+		entry.preservePath = false;
+		assertEquals("releases/42/a.jar", entry.targetOf("target/a.jar"));
+		entry.targetPath = "/job/{dir}/42-{name}";
+		assertEquals("job/target/42-a.jar", entry.targetOf("target/a.jar"));
+		assertEquals("job/42-a.jar", entry.targetOf("a.jar"));
+	}
+	
+	public void testArchiveEntity() throws Exception {
+		File ws = File.createTempFile("tWs", "");
+		ws.delete();
+		new File(ws, "site/css").mkdirs();
+		for (final String path : new String[] { "site/index.html", "site/css/a.css" }) {
+			FileOutputStream fos = new FileOutputStream(new File(ws, path));
+			fos.write(path.getBytes("UTF-8"));
+			fos.close();
+		}
+		ArchiveEntity entity = new ArchiveEntity(ArchiveEntity.Format.ZIP, ws,
+				Arrays.asList("site/css/a.css", "site/index.html"), "site/");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		assertEquals(out.size(), entity.getArchiveLength());
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals("css/a.css", zip.getNextEntry().getName());
+		assertEquals("index.html", zip.getNextEntry().getName());
+		assertNull(zip.getNextEntry());
+		zip.close();
+
+		entity = new ArchiveEntity(ArchiveEntity.Format.TGZ, ws,
+				Arrays.asList("site/css/a.css", "site/index.html"), "site/");
+		out = new ByteArrayOutputStream();
+		entity.writeTo(out);
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		InputStream in = entity.getContent();
+		byte[] buffer = new byte[4096];
+		int len;
+		while ((len = in.read(buffer)) != -1) {
+			content.write(buffer, 0, len);
+		}
+		in.close();
+		assertTrue(Arrays.equals(out.toByteArray(), content.toByteArray()));
+	}
+	
+	public void testBandwidthLimit() throws Exception {
+		profile.setMaxBandwidth(64);
+		UploadMetrics metrics = new UploadMetrics();
+		HttpEntity entity = ThrottledEntity.of(profile,
+				new FileEntity(UploadHelper.fileOfLength(128 * 1024)), metrics);
+		long start = System.currentTimeMillis();
+		entity.writeTo(new ByteArrayOutputStream());
+		// the bucket starts empty, so 128 KB at 64 KB/s take two seconds
+		assertTrue(System.currentTimeMillis() - start >= 1500);
+		assertTrue(metrics.getThrottled() >= 1500);
+
+		profile.setMaxBandwidth(0);
+		assertTrue(TokenBucket.of(profile).isEmpty());
+	}
+	
+	public void testUploadDedup() throws Exception {
+		final AtomicInteger uploads = new AtomicInteger();
+		final Callable<UploadResult> upload = new Callable<UploadResult>() {
+			public UploadResult call() throws Exception {
+				uploads.incrementAndGet();
+				Thread.sleep(200);
+				return new UploadResult("a/x.jar", "x.jar", true, false, 1, null, new UploadMetrics());
+			}
+		};
+		final UploadDedup dedup = UploadDedup.acquire("testUploadDedup#1");
+		List<Callable<UploadResult>> requests = new ArrayList<Callable<UploadResult>>();
+		for (int i = 0; i < 4; i++) {
+			final String path = "entry-" + i + "/x.jar";
+			requests.add(new Callable<UploadResult>() {
+				public UploadResult call() throws Exception {
+					return dedup.upload("x.jar", path, upload);
+				}
+			});
+		}
+		int duplicates = 0;
+		for (final UploadResult result : new UploadScheduler(4).invokeAll(requests)) {
+			assertTrue(result.isSuccess());
+			if (result.isDuplicate()) {
+				duplicates++;
+			}
+		}
+		dedup.release();
+		assertEquals(1, uploads.get());
+		assertEquals(3, duplicates);
+	}
+	
+	public void testUploadDedupKeys() throws Exception {
+		File file = UploadHelper.fileOfLength(1000);
+		// entries may match a file through different paths
+		File other = new File(new File(file.getParentFile(), "."), file.getName());
+		String key = UploadDedup.keyOf(file, "x.jar");
+		assertEquals(key, UploadDedup.keyOf(other, "x.jar"));
+		assertFalse(key.equals(UploadDedup.keyOf(file, "y.jar")));
+		FileOutputStream fos = new FileOutputStream(file, true);
+		fos.write(1);
+		fos.close();
+		// a file changed since is uploaded again
+		assertFalse(key.equals(UploadDedup.keyOf(file, "x.jar")));
+
+		UploadDedup dedup = UploadDedup.acquire("testUploadDedupKeys#1");
+		try {
+			dedup.upload("x.jar", "a/x.jar", new Callable<UploadResult>() {
+				public UploadResult call() throws Exception {
+					throw new IOException("connection reset");
+				}
+			});
+			fail("the upload failed");
+		} catch (IOException e) {
+			// expected
+		}
+		// a failed upload is tried again
+		UploadResult result = dedup.upload("x.jar", "a/x.jar", new Callable<UploadResult>() {
+			public UploadResult call() throws Exception {
+				return new UploadResult("a/x.jar", "x.jar", true, false, 1, null, new UploadMetrics());
+			}
+		});
+		dedup.release();
+		assertTrue(result.isSuccess());
+		assertFalse(result.isDuplicate());
+	}
+	
+	public void testServerSelection() throws Exception {
+		Server slow = new Server("http://slow.testServerSelection/");
+		Server fast = new Server("http://fast.testServerSelection/");
+		HttpPublisherProfile selecting = new HttpPublisherProfile("testServerSelection",
+				new Server[] { slow, fast });
+		ServerHealth.of(slow.getHostname()).begin();
+		ServerHealth.of(slow.getHostname()).success(500);
+		ServerHealth.of(fast.getHostname()).begin();
+		ServerHealth.of(fast.getHostname()).success(50);
+		assertSame(slow, ServerSelector.order(selecting).get(0));
+		selecting.setServerSelection(ServerSelection.HEALTHIEST);
+		assertSame(fast, ServerSelector.order(selecting).get(0));
+		for (int i = 0; i < ServerHealth.FAILURE_THRESHOLD; i++) {
+			ServerHealth.of(fast.getHostname()).begin();
+			ServerHealth.of(fast.getHostname()).failure(10, 60000);
+		}
+		assertTrue(ServerHealth.of(fast.getHostname()).isCoolingDown());
+		assertSame(slow, ServerSelector.order(selecting).get(0));
+	}
+	
+	public void testReplicatedUpload() throws Exception {
+		UploadHelper mirror = new UploadHelper();
+		mirror.startServer();
+		try {
+			File file = UploadHelper.fileOfLength(300 * 1024);
+			HttpPublisherProfile replicating = new HttpPublisherProfile("testReplicatedUpload", new Server[] {
+					new Server(String.format("http://localhost:%d/", helper.getServerPort())),
+					new Server(String.format("http://localhost:%d/", mirror.getServerPort()))
+			});
+			replicating.setReplicate(true);
+			assertEquals(2, replicating.getRequiredReplicas());
+			assertTrue(replicating.upload(file));
+			assertTrue(helper.contains(file.getName(), new FileEntity(file)));
+			assertTrue(mirror.contains(file.getName(), new FileEntity(file)));
+
+			mirror.failRequests(1);
+			assertFalse(replicating.upload(file));
+			replicating.setQuorum("majority");
+			mirror.failRequests(1);
+			assertFalse(replicating.upload(file));
+			replicating.setQuorum("1");
+			mirror.failRequests(1);
+			assertTrue(replicating.upload(file));
+		} finally {
+			mirror.stopServer();
+		}
+	}
+	
+	public void testRetryTransientFailure() throws Exception {
+		FileEntity entity = new FileEntity(UploadHelper.fileOfLength(100));
+		profile.setRetryBackoff(10);
+		helper.failRequests(1);
+		assertTrue(profile.upload("testRetry", entity));
+		assertTrue(helper.contains("testRetry", entity));
+
+		profile.setMaxRetries(0);
+		helper.failRequests(1);
+		assertFalse(profile.upload("testNoRetry", entity));
+	}
+	
+	public void testRetryBackoff() throws Exception {
+		profile.setRetryBackoff(100);
+		RetryPolicy retryPolicy = RetryPolicy.start(profile);
+		for (int attempt = 0; attempt < 5; attempt++) {
+			long delay = retryPolicy.backoff(attempt);
+			assertTrue(delay >= 50L << attempt);
+			assertTrue(delay <= 100L << attempt);
+		}
+		assertTrue(RetryPolicy.isRetryable(503));
+		assertFalse(RetryPolicy.isRetryable(404));
+		assertFalse(RetryPolicy.isIdempotent("POST"));
+	}
+	
+	public void testIncrementalManifest() throws Exception {
+		File file = UploadHelper.fileOfLength(1024);
+		FileDigest digest = FileDigest.of(file);
+		Map<String, String> manifest = new HashMap<String, String>();
+		manifest.put("testIncremental", digest.getSha256());
+		assertFalse(profile.isUnchanged("testIncremental", file, digest, manifest));
+		profile.setIncremental(Incremental.MANIFEST);
+		assertTrue(profile.isUnchanged("testIncremental", file, digest, manifest));
+		assertFalse(profile.isUnchanged("other", file, digest, manifest));
+	}
+	
+	public void testDigestMatchesHeaders() throws Exception {
+		FileDigest digest = FileDigest.of(UploadHelper.fileOfLength(100));
+		assertTrue(digest.matches("\"" + digest.getMd5() + "\"", null));
+		assertTrue(digest.matches(null, digest.getMd5Base64()));
+		assertFalse(digest.matches("W/\"" + digest.getMd5() + "\"", null));
+		assertFalse(digest.matches("\"abc\"", null));
+	}
+	
 	class UploadThread extends Thread {
 		private FileEntity entity;
 		
@@ -72,4 +544,82 @@ public class HttpPublisherProfileTest extends TestCase {
 		}
 	}
 	
+	public void testSchedulerRunsAllJobs() throws Exception {
+		final AtomicInteger runs = new AtomicInteger();
+		List<Callable<Integer>> jobs = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 4; i++) {
+			final int job = i;
+			jobs.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					runs.incrementAndGet();
+					if (job == 1) {
+						throw new IOException("job " + job + " failed");
+					}
+					return job;
+				}
+			});
+		}
+		for (final int maxInFlight : new int[] { 1, 2 }) {
+			runs.set(0);
+			try {
+				new UploadScheduler(maxInFlight).invokeAll(jobs);
+				fail("a job failed");
+			} catch (IOException e) {
+				assertEquals("job 1 failed", e.getMessage());
+			}
+			assertEquals(4, runs.get());
+		}
+	}
+	
+	public void testVirtualThreadScheduler() throws Exception {
+		profile.setVirtualThreads(true);
+		profile.setMaxParallelUploads(2);
+		profile.setMaxConnectionsPerRoute(3);
+		UploadScheduler scheduler = UploadScheduler.of(profile);
+		// older JVMs fall back to the parallel uploads
+		assertEquals(UploadScheduler.isVirtualThreadsAvailable(), scheduler.isVirtualThreads());
+		assertEquals(scheduler.isVirtualThreads() ? 3 : 2, scheduler.getMaxInFlight());
+
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		List<Callable<Integer>> jobs = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < 50; i++) {
+			final int n = i;
+			jobs.add(new Callable<Integer>() {
+				public Integer call() throws Exception {
+					int current = inFlight.incrementAndGet();
+					synchronized (maxInFlight) {
+						maxInFlight.set(Math.max(maxInFlight.get(), current));
+					}
+					Thread.sleep(5);
+					inFlight.decrementAndGet();
+					return n;
+				}
+			});
+		}
+		List<Integer> results = scheduler.invokeAll(jobs);
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i, results.get(i).intValue());
+		}
+		assertTrue(maxInFlight.get() <= scheduler.getMaxInFlight());
+	}
+	
+	public void testWorkspaceScanner() throws Exception {
+		File ws = File.createTempFile("tWs", "");
+		ws.delete();
+		new File(ws, "target/sub").mkdirs();
+		new File(ws, ".git").mkdirs();
+		for (final String path : new String[] { "target/a.jar", "target/sub/b.jar",
+				"target/c.txt", ".git/d.jar", "e.jar" }) {
+			new FileOutputStream(new File(ws, path)).close();
+		}
+		WorkspaceScanner scanner = new WorkspaceScanner(ws,
+				Arrays.asList("target/*.jar", "**/*.jar", "missing/*.jar"));
+		List<List<String>> matches = scanner.scan();
+		assertEquals(Arrays.asList("target/a.jar"), matches.get(0));
+		assertEquals(Arrays.asList("e.jar", "target/a.jar", "target/sub/b.jar"), matches.get(1));
+		assertTrue(matches.get(2).isEmpty());
+		assertTrue(scanner.explainEmpty(2).contains("'missing' doesn't exist"));
+	}
+	
 }
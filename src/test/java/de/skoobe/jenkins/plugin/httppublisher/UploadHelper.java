@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -22,8 +24,13 @@ import java.util.Random;
 public class UploadHelper extends AbstractHandler {
 	
 	public static int minSleep = 2;
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
 	private Server currentServer;
 	private List<UploadedFile> files = new ArrayList<UploadedFile>();
+	private int failures;
+	private int batches;
+	private boolean rejectBatches;
+	private boolean ignoreRanges;
 	
 	private class UploadedFile {
 		public String filename;
@@ -38,6 +45,13 @@ public class UploadHelper extends AbstractHandler {
 			}
 		}
 		
+		public UploadedFile(String filename, byte[] data, int offset, int length) {
+			this.filename = filename;
+			this.length = length;
+			content = new ByteArrayBuffer(length);
+			content.append(data, offset, length);
+		}
+		
 		public UploadedFile(HttpServletRequest request) throws IOException {
 			filename = new String(request.getPathInfo().substring(1));
 			length = request.getContentLength();
@@ -54,7 +68,7 @@ public class UploadHelper extends AbstractHandler {
 			byte[] bufferA, bufferB;
 			bufferA = content.buffer();
 			bufferB = entityContent.buffer();
-			for (int i = 0; i < bufferA.length; i++) {
+			for (int i = 0; i < length; i++) {
 				if (bufferA[i] != bufferB[i]) {
 					return false;
 				}
@@ -71,6 +85,32 @@ public class UploadHelper extends AbstractHandler {
 	public void handle(String target, HttpServletRequest request,
 			HttpServletResponse response, int dispatch) throws IOException,
 			ServletException {
+		synchronized (this) {
+			if (failures > 0) {
+				failures--;
+				new UploadedFile(request);
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				((Request)request).setHandled(true);
+				return;
+			}
+		}
+		String contentType = request.getContentType();
+		if (contentType != null && contentType.startsWith("multipart/mixed")) {
+			handleBatch(request, response);
+			return;
+		}
+		String range = request.getHeader("Content-Range");
+		boolean ignoreRange;
+		synchronized (this) {
+			ignoreRange = ignoreRanges;
+		}
+		Matcher chunk = range == null || ignoreRange ? null : CONTENT_RANGE.matcher(range);
+		if (chunk != null && chunk.matches()
+				&& Long.parseLong(chunk.group(2)) + 1 < Long.parseLong(chunk.group(3))) {
+			// acknowledge everything but the last chunk
+			response.setStatus(308);
+			response.setHeader("Range", "bytes=0-" + chunk.group(2));
+		}
 		String msg = "Putting " + request.getPathInfo() + " with request " + Thread.currentThread().getId() + "\n";
 		response.getWriter().append(msg);
 		// System.err.print(msg);
@@ -78,7 +118,15 @@ public class UploadHelper extends AbstractHandler {
 		UploadedFile file = new UploadedFile(request);
 		synchronized (this) {
 			// System.out.println("Add file " + file);
-			files.add(file);
+			if (ignoreRange) {
+				// every request overwrites the file
+				removeFile(file.filename);
+				files.add(file);
+			} else if (range != null && !range.startsWith("bytes 0-")) {
+				appendChunk(file);
+			} else {
+				files.add(file);
+			}
 		}
 		try {
 			Thread.sleep((minSleep + request.getContentLength() % minSleep) * 1000);
@@ -90,6 +138,122 @@ public class UploadHelper extends AbstractHandler {
 		((Request)request).setHandled(true);
 	}
 	
+	/**
+	 * Stores the parts of a <code>multipart/mixed</code> PUT and answers with
+	 * a <code>&lt;status&gt; &lt;path&gt;</code> line per part.
+	 */
+	private void handleBatch(HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		synchronized (this) {
+			if (rejectBatches) {
+				response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+				((Request)request).setHandled(true);
+				return;
+			}
+		}
+		String contentType = request.getContentType();
+		String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + 9);
+		ByteArrayBuffer body = new ByteArrayBuffer(4096);
+		byte[] data = new byte[4 * 1024];
+		int len;
+		InputStream in = request.getInputStream();
+		while ((len = in.read(data)) != -1) {
+			body.append(data, 0, len);
+		}
+		byte[] bytes = body.toByteArray();
+		StringBuilder statuses = new StringBuilder();
+		int pos = 0;
+		for (;;) {
+			int end = lineEnd(bytes, pos);
+			if (new String(bytes, pos, end - pos, "UTF-8").equals(boundary + "--")) {
+				break;
+			}
+			pos = end + 2;
+			String location = null;
+			int length = 0;
+			for (;;) {
+				end = lineEnd(bytes, pos);
+				String header = new String(bytes, pos, end - pos, "UTF-8");
+				pos = end + 2;
+				if (header.length() == 0) {
+					break;
+				}
+				if (header.startsWith("Content-Location: ")) {
+					location = header.substring(18);
+				} else if (header.startsWith("Content-Length: ")) {
+					length = Integer.parseInt(header.substring(16));
+				}
+			}
+			synchronized (this) {
+				files.add(new UploadedFile(location, bytes, pos, length));
+			}
+			statuses.append("201 ").append(location).append("\r\n");
+			pos += length + 2;
+		}
+		synchronized (this) {
+			batches++;
+		}
+		response.setContentType("text/plain");
+		response.getWriter().append(statuses);
+		((Request)request).setHandled(true);
+	}
+	
+	private static int lineEnd(byte[] bytes, int from) throws IOException {
+		for (int i = from; i + 1 < bytes.length; i++) {
+			if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+				return i;
+			}
+		}
+		throw new IOException("malformed multipart body");
+	}
+	
+	/**
+	 * Answers batched requests with 405, like a server that does not
+	 * support them.
+	 */
+	public synchronized void rejectBatches(boolean reject) {
+		rejectBatches = reject;
+	}
+	
+	/**
+	 * Stores every request as the whole file, like a server that does not
+	 * support <code>Content-Range</code>.
+	 */
+	public synchronized void ignoreRanges(boolean ignore) {
+		ignoreRanges = ignore;
+	}
+	
+	private void removeFile(String filename) {
+		for (int i = files.size() - 1; i >= 0; i--) {
+			if (files.get(i).filename.equals(filename)) {
+				files.remove(i);
+			}
+		}
+	}
+	
+	public synchronized int getBatchCount() {
+		return batches;
+	}
+	
+	private void appendChunk(UploadedFile chunk) {
+		for (int i = files.size() - 1; i >= 0; i--) {
+			UploadedFile u = files.get(i);
+			if (u.filename.equals(chunk.filename)) {
+				u.content.append(chunk.content.buffer(), 0, chunk.content.length());
+				u.length += chunk.length;
+				return;
+			}
+		}
+		files.add(chunk);
+	}
+	
+	/**
+	 * Answers the next <code>count</code> requests with 503.
+	 */
+	public synchronized void failRequests(int count) {
+		failures = count;
+	}
+	
 	public boolean contains(String filename, FileEntity entity) throws IOException {
 		for (final UploadedFile u : files) {
 			// System.out.println("Compare " + filename + " with " + u.filename);